@@ -1,11 +1,26 @@
 package xyz.cirno.avb;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-public class AndroidBootImage {
-    private RandomAccessFile f;
+import xyz.cirno.avb.util.IOUtils;
 
+/**
+ * Layout of a boot, init_boot or vendor_boot image, parsed from its header.
+ */
+public class AndroidBootImage {
     private static final byte[] ANDROID_BOOT_MAGIC = {
             0x41, 0x4E, 0x44, 0x52, 0x4F, 0x49, 0x44, 0x21 // "ANDROID!"
     };
@@ -15,130 +30,182 @@ public class AndroidBootImage {
             0x56, 0x4E, 0x44, 0x52, 0x42, 0x4F, 0x4F, 0x54
     };
 
+    // large enough for every header version
+    private static final int HEADER_READ_SIZE = 4096;
 
     public enum ImageType {
         BOOT,
         VENDOR
     }
 
-    private ImageType type;
+    /**
+     * A section of the image, {@code size} is the unpadded size of its content.
+     */
+    public record Component(String name, long offset, long size) {
+    }
+
+    public final ImageType type;
+    public final int headerVersion;
+    private final List<Component> components;
+    private final long size;
 
-    private AndroidBootImage(RandomAccessFile f, ImageType type) {
-        this.f = f;
+    private AndroidBootImage(ImageType type, int headerVersion, List<Component> components, long size) {
         this.type = type;
+        this.headerVersion = headerVersion;
+        this.components = Collections.unmodifiableList(components);
+        this.size = size;
     }
 
-    public static AndroidBootImage tryAttach(RandomAccessFile f) throws IOException {
+    /**
+     * Parses the header at the start of {@code ch}.
+     *
+     * @return null if {@code ch} does not start with a boot image header of a supported version
+     */
+    public static @Nullable AndroidBootImage tryParse(SeekableByteChannel ch) throws IOException {
+        var buf = ByteBuffer.allocate(HEADER_READ_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ch.position(0);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        if (buf.remaining() < 8) {
+            return null;
+        }
         var magic = new byte[8];
-        f.seek(0);
-        var len = f.read(magic);
-        if (len != 8) {
+        buf.duplicate().get(magic);
+        if (Arrays.equals(magic, ANDROID_BOOT_MAGIC)) {
+            return parseBoot(buf);
+        } else if (Arrays.equals(magic, VENDOR_BOOT_MAGIC)) {
+            return parseVendorBoot(buf);
+        }
+        return null;
+    }
+
+    // https://android.googlesource.com/platform/system/tools/mkbootimg/+/refs/heads/android16-release/include/bootimg/bootimg.h
+    private static AndroidBootImage parseBoot(ByteBuffer buf) {
+        if (buf.limit() < 1584) {
             return null;
         }
-        if (java.util.Arrays.equals(magic, ANDROID_BOOT_MAGIC)) {
-            return new AndroidBootImage(f, ImageType.BOOT);
-        } else if (java.util.Arrays.equals(magic, VENDOR_BOOT_MAGIC)) {
-            return new AndroidBootImage(f, ImageType.VENDOR);
+        var headerVersion = buf.getInt(0x28);
+        var layout = new Layout();
+        if (headerVersion >= 0 && headerVersion <= 2) {
+            var pageSize = buf.getInt(36);
+            if (!isValidPageSize(pageSize) || buf.limit() < 1652) {
+                return null;
+            }
+            layout.pageSize = pageSize;
+            layout.add("header", headerVersion == 0 ? 1632 : uint(buf, 1644));
+            layout.add("kernel", uint(buf, 8));
+            layout.add("ramdisk", uint(buf, 16));
+            layout.add("second", uint(buf, 24));
+            if (headerVersion >= 1) {
+                layout.add("recovery_dtbo", uint(buf, 1632));
+            }
+            if (headerVersion == 2) {
+                layout.add("dtb", uint(buf, 1648));
+            }
+        } else if (headerVersion == 3 || headerVersion == 4) {
+            layout.pageSize = 4096;
+            layout.add("header", uint(buf, 20));
+            layout.add("kernel", uint(buf, 8));
+            layout.add("ramdisk", uint(buf, 12));
+            if (headerVersion == 4) {
+                layout.add("signature", uint(buf, 1580));
+            }
         } else {
             return null;
         }
+        return new AndroidBootImage(ImageType.BOOT, headerVersion, layout.components, layout.offset);
     }
 
-    private static long toUIntLE(int x) {
-        var rev = Integer.reverseBytes(x);
-        return ((long) rev) & 0x0FFFFFFFFL;
+    private static AndroidBootImage parseVendorBoot(ByteBuffer buf) {
+        if (buf.limit() < 2128) {
+            return null;
+        }
+        var headerVersion = buf.getInt(8);
+        if (headerVersion != 3 && headerVersion != 4) {
+            return null;
+        }
+        var pageSize = buf.getInt(12);
+        if (!isValidPageSize(pageSize)) {
+            return null;
+        }
+        var layout = new Layout();
+        layout.pageSize = pageSize;
+        layout.add("header", uint(buf, 2096));
+        layout.add("vendor_ramdisk", uint(buf, 24));
+        layout.add("dtb", uint(buf, 2100));
+        if (headerVersion == 4) {
+            layout.add("vendor_ramdisk_table", uint(buf, 2112));
+            layout.add("bootconfig", uint(buf, 2124));
+        }
+        return new AndroidBootImage(ImageType.VENDOR, headerVersion, layout.components, layout.offset);
+    }
+
+    private static boolean isValidPageSize(int pageSize) {
+        return pageSize >= 2048 && pageSize <= 65536 && Integer.bitCount(pageSize) == 1;
     }
 
-    private static long readUIntLE(RandomAccessFile f) throws IOException {
-        var rev = Integer.reverseBytes(f.readInt());
-        return ((long) rev) & 0x0FFFFFFFFL;
+    private static long uint(ByteBuffer buf, int offset) {
+        return buf.getInt(offset) & 0xffffffffL;
     }
 
-    private static long roundToPage(long size, long pageSize) {
-        return ((size + pageSize - 1) / pageSize) * pageSize;
+    private static final class Layout {
+        final List<Component> components = new ArrayList<>();
+        long pageSize;
+        long offset = 0;
+
+        void add(String name, long size) {
+            components.add(new Component(name, offset, size));
+            offset += IOUtils.alignTo(size, pageSize);
+        }
+    }
+
+    /**
+     * @return components in the order they are laid out, including the header
+     */
+    public List<Component> components() {
+        return components;
     }
 
-    public long calcuateSize() {
-        // https://android.googlesource.com/platform/system/tools/mkbootimg/+/refs/heads/android16-release/include/bootimg/bootimg.h
+    /**
+     * @return size of the image including the padding of its last component
+     */
+    public long calculateSize() {
+        return size;
+    }
+
+    /**
+     * Computes the SHA-256 of the content of each component that lies within the first {@code limit} bytes of
+     * {@code ch}, in layout order. Components extending past {@code limit} are left out.
+     */
+    public Map<String, byte[]> componentDigests(SeekableByteChannel ch, long limit) throws IOException {
+        MessageDigest md;
         try {
-            if (type == ImageType.BOOT) {
-                f.seek(0x28);
-                var headerVersion = Integer.reverseBytes(f.readInt());
-                if (headerVersion <= 2) {
-                    f.seek(8);
-                    var kernelSize = readUIntLE(f);
-                    f.seek(16);
-                    var ramdiskSize = readUIntLE(f);
-                    f.seek(24);
-                    var secondSize = readUIntLE(f);
-                    f.seek(36);
-                    var pageSize = Integer.reverseBytes(f.readInt());
-                    if (headerVersion == 0) {
-                        return pageSize
-                                + roundToPage(kernelSize, pageSize)
-                                + roundToPage(ramdiskSize, pageSize)
-                                + roundToPage(secondSize, pageSize);
-                    }
-                    f.seek(1632);
-                    var recoveryDtboSize = readUIntLE(f);
-                    if (headerVersion == 1) {
-                        return pageSize
-                                + roundToPage(kernelSize, pageSize)
-                                + roundToPage(ramdiskSize, pageSize)
-                                + roundToPage(secondSize, pageSize)
-                                + roundToPage(recoveryDtboSize, pageSize);
-                    }
-                    // version 2
-                    f.seek(1648);
-                    var dtbSize = readUIntLE(f);
-                    return pageSize
-                            + roundToPage(kernelSize, pageSize)
-                            + roundToPage(ramdiskSize, pageSize)
-                            + roundToPage(secondSize, pageSize)
-                            + roundToPage(recoveryDtboSize, pageSize)
-                            + roundToPage(dtbSize, pageSize);
-                } else if (headerVersion <= 4) {
-                    f.seek(8);
-                    var kernelSize = readUIntLE(f);
-                    var ramdiskSize = readUIntLE(f);
-                    if (headerVersion == 3) {
-                        return 4096 + roundToPage(kernelSize, 4096) + roundToPage(ramdiskSize, 4096);
-                    }
-                    // version 4
-                    f.seek(1580);
-                    var sigSize = readUIntLE(f);
-                    return 4096 + roundToPage(kernelSize, 4096) + roundToPage(ramdiskSize, 4096) + roundToPage(sigSize, 4096);
-                }
-                // unknown header version, fallthrough
-            } else if (type == ImageType.VENDOR) {
-                f.seek(8);
-                var headerVersion = Integer.reverseBytes(f.readInt());
-                if (headerVersion == 3 || headerVersion == 4) {
-                    f.seek(12);
-                    var pageSize = Integer.reverseBytes(f.readInt());
-                    f.seek(24);
-                    var ramdiskSize = readUIntLE(f);
-                    f.seek(2100);
-                    var dtbSize = readUIntLE(f);
-                    if (headerVersion == 3) {
-                        return roundToPage(2112, pageSize)
-                                + roundToPage(ramdiskSize, pageSize)
-                                + roundToPage(dtbSize, pageSize);
-                    }
-                    // version 4
-                    f.seek(2112);
-                    var ramdiskTableSize = readUIntLE(f);
-                    f.seek(2124);
-                    var bootConfigSize = readUIntLE(f);
-                    return roundToPage(2128, pageSize)
-                            + roundToPage(ramdiskSize, pageSize)
-                            + roundToPage(dtbSize, pageSize)
-                            + roundToPage(ramdiskTableSize, pageSize)
-                            + roundToPage(bootConfigSize, pageSize);
-                }
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to get digest instance", e);
+        }
+        var result = new LinkedHashMap<String, byte[]>();
+        var buffer = ByteBuffer.allocateDirect(262144);
+        for (var component : components) {
+            if (component.offset + component.size > limit) {
+                continue;
+            }
+            ch.position(component.offset);
+            var remaining = component.size;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                IOUtils.readFully(ch, buffer);
+                remaining -= buffer.position();
+                buffer.flip();
+                md.update(buffer);
             }
-        } catch (IOException ignore) {
+            result.put(component.name, md.digest());
         }
-        return -1;
+        return result;
     }
 }
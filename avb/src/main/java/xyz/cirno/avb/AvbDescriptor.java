@@ -27,13 +27,10 @@ public abstract class AvbDescriptor {
     public static AvbDescriptor parseFrom(ByteBuffer buf) {
         var tag = buf.getLong();
         var numBytesFollowing = buf.getLong();
-        InvalidAvbDataException.checkUnsignedOverflow(numBytesFollowing);
-        if (numBytesFollowing > buf.remaining()) {
-            throw new InvalidAvbDataException("descriptor size overflow");
-        }
-        var payload = new byte[(int) numBytesFollowing];
-        var buf2 = ByteBuffer.wrap(payload);
-        buf.get(payload);
+        var payloadSize = InvalidAvbDataException.checkLength(numBytesFollowing, buf);
+        var buf2 = buf.slice();
+        buf2.limit(payloadSize);
+        buf.position(buf.position() + payloadSize);
 
         if (tag == TAG_PROPERTY) {
             return PropertyDescriptor.parseFromPayload(buf2);
@@ -47,6 +44,8 @@ public abstract class AvbDescriptor {
             return ChainPartitionDescriptor.parseFromPayload(buf2);
         } else {
             Logger.warn("Unknown AVB descriptor tag: " + tag);
+            var payload = new byte[payloadSize];
+            buf2.get(payload);
             return new UnparsedAvbDescriptor(tag, payload);
         }
     }
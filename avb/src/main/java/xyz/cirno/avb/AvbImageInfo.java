@@ -0,0 +1,116 @@
+package xyz.cirno.avb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The AVB metadata of an image, like {@code avbtool info_image}. Only the footer and the vbmeta image are read,
+ * never the image data.
+ */
+public final class AvbImageInfo {
+    public final long imageSize;
+    // null for a standalone vbmeta image
+    public final @Nullable VerifiedBootFooter footer;
+    public final ParsedVerifiedBootMetaImage vbmeta;
+
+    private AvbImageInfo(long imageSize, @Nullable VerifiedBootFooter footer, ParsedVerifiedBootMetaImage vbmeta) {
+        this.imageSize = imageSize;
+        this.footer = footer;
+        this.vbmeta = vbmeta;
+    }
+
+    /**
+     * @return the metadata of the image, or null if it has no vbmeta image or footer
+     * @throws InvalidAvbDataException if the vbmeta image is malformed or exceeds {@code limits}
+     */
+    public static @Nullable AvbImageInfo read(SeekableByteChannel ch, AvbParseLimits limits) throws IOException {
+        var info = AvbPartitionInfo.ofPartition(ch);
+        if (info == null) {
+            return null;
+        }
+        ch.position(info.vbmetaOffset);
+        return new AvbImageInfo(ch.size(), info.footer, VerifiedBootMetaImage.parseFrom(ch, limits));
+    }
+
+    public static @Nullable AvbImageInfo read(Path image) throws IOException {
+        try (var ch = FileChannel.open(image, StandardOpenOption.READ)) {
+            return read(ch, AvbParseLimits.DEFAULT);
+        }
+    }
+
+    /**
+     * Reads all {@code images} concurrently on {@code executor}.
+     *
+     * @return the pending metadata of each image, in the order of {@code images}. A future completes with null for
+     * an image without AVB metadata, and exceptionally if it cannot be read or parsed.
+     */
+    public static List<CompletableFuture<AvbImageInfo>> readAll(Collection<Path> images, Executor executor) {
+        var result = new ArrayList<CompletableFuture<AvbImageInfo>>(images.size());
+        for (var image : images) {
+            result.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read(image);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        return result;
+    }
+
+    /**
+     * @return the value of the first property descriptor called {@code name}, or null
+     */
+    public @Nullable String property(String name) {
+        for (var desc : vbmeta.descriptors) {
+            if (desc instanceof PropertyDescriptor pd && pd.name.equals(name)) {
+                return pd.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all property descriptors in descriptor order, the first one wins for duplicate names
+     */
+    public Map<String, String> properties() {
+        var result = new LinkedHashMap<String, String>();
+        for (var desc : vbmeta.descriptors) {
+            if (desc instanceof PropertyDescriptor pd) {
+                result.putIfAbsent(pd.name, pd.value);
+            }
+        }
+        return result;
+    }
+
+    public List<KernelCmdlineDescriptor> kernelCmdlines() {
+        var result = new ArrayList<KernelCmdlineDescriptor>();
+        for (var desc : vbmeta.descriptors) {
+            if (desc instanceof KernelCmdlineDescriptor kcd) {
+                result.add(kcd);
+            }
+        }
+        return result;
+    }
+
+    public String releaseString() {
+        var bytes = vbmeta.header.releaseString;
+        var len = 0;
+        while (len < bytes.length && bytes[len] != 0) len++;
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+}
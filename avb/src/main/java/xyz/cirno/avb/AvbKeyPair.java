@@ -3,12 +3,19 @@ package xyz.cirno.avb;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.interfaces.RSAPrivateCrtKey;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
-public final class AvbKeyPair {
+public final class AvbKeyPair implements AvbSigner {
     public final AvbPublicKey publicKey;
     public final PrivateKey privateKey;
 
@@ -19,21 +26,20 @@ public final class AvbKeyPair {
 
     @Nullable
     private static PrivateKey parsePrivateKeyFromPem(Path privateKeyPath) {
-        try (var keyReader = new java.io.FileReader(privateKeyPath.toFile())) {
-            var pemParser = new org.bouncycastle.openssl.PEMParser(keyReader);
-            var object = pemParser.readObject();
-            var converter = new org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter();
-            if (object instanceof org.bouncycastle.openssl.PEMKeyPair) {
-                return converter.getPrivateKey(((org.bouncycastle.openssl.PEMKeyPair) object).getPrivateKeyInfo());
-            } else if (object instanceof org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo) {
-                return null;
-            } else if (object instanceof org.bouncycastle.asn1.pkcs.PrivateKeyInfo) {
-                return converter.getPrivateKey((org.bouncycastle.asn1.pkcs.PrivateKeyInfo) object);
-            }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(privateKeyPath);
         } catch (IOException e) {
             return null;
         }
-        return null;
+        var result = PrivateKeyReader.read(data);
+        if (result.key() != null) {
+            return result.key();
+        }
+        return switch (result.format()) {
+            case PKCS1, PKCS8, OTHER_PEM -> BouncyCastleKeyReader.read(new String(data, StandardCharsets.US_ASCII));
+            case ENCRYPTED, NOT_A_KEY -> null;
+        };
     }
 
     public static AvbKeyPair fromPrivateKey(PrivateKey privateKey) {
@@ -53,6 +59,39 @@ public final class AvbKeyPair {
         return fromPrivateKey(privateKey);
     }
 
+    @Override
+    public AvbPublicKey publicKey() {
+        return publicKey;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> sign(AvbAlgorithmType algorithm, byte[] data) {
+        try {
+            return CompletableFuture.completedFuture(signNow(algorithm, data));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public byte[] signNow(AvbAlgorithmType algorithm, byte[] data) {
+        var algo = algorithm.getSignatureAlgorithm();
+        if (algo == null) {
+            throw new InvalidAvbDataException("invalid algorithmType");
+        }
+        try {
+            var sig = Signature.getInstance(algo);
+            sig.initSign(privateKey);
+            sig.update(data);
+            return sig.sign();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to get signature instance", e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("invalid private key", e);
+        } catch (SignatureException e) {
+            throw new RuntimeException("Failed to sign digest", e);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || getClass() != o.getClass()) return false;
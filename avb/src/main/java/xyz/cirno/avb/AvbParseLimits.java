@@ -0,0 +1,46 @@
+package xyz.cirno.avb;
+
+/**
+ * Upper bounds enforced while parsing vbmeta images, checked against the sizes claimed by the header before
+ * anything is allocated for them, so a corrupt or hostile image costs a bounded amount of memory.
+ *
+ * @param maxVbmetaSize  largest vbmeta image accepted, header, authentication and auxiliary blocks together
+ * @param maxDescriptors largest number of descriptors in one vbmeta image
+ */
+public record AvbParseLimits(int maxVbmetaSize, int maxDescriptors) {
+    // libavb reads at most 64 KiB of a vbmeta partition, and avbtool reserves the same for vbmeta behind a footer
+    public static final AvbParseLimits DEFAULT = new AvbParseLimits(65536, 1024);
+
+    public AvbParseLimits {
+        if (maxVbmetaSize < VerifiedBootHeader.HEADER_SIZE || maxDescriptors < 0) {
+            throw new IllegalArgumentException("invalid parse limits");
+        }
+    }
+
+    /**
+     * @return size of the whole vbmeta image described by {@code header}
+     * @throws InvalidAvbDataException if the image is larger than {@link #maxVbmetaSize}, or its blocks do not
+     *                                 contain the regions the header points to
+     */
+    public int checkVbmetaSize(VerifiedBootHeader header) {
+        var auth = header.authenticationDataBlockSize;
+        var aux = header.auxiliaryDataBlockSize;
+        if (auth > maxVbmetaSize || aux > maxVbmetaSize || VerifiedBootHeader.HEADER_SIZE + auth + aux > maxVbmetaSize) {
+            throw new InvalidAvbDataException("vbmeta image with " + auth + " + " + aux
+                    + " bytes of data blocks exceeds the limit of " + maxVbmetaSize + " bytes");
+        }
+        checkRegion("hash", header.hashOffset, header.hashSize, auth);
+        checkRegion("signature", header.signatureOffset, header.signatureSize, auth);
+        checkRegion("public key", header.publicKeyOffset, header.publicKeySize, aux);
+        checkRegion("public key metadata", header.publicKeyMetadataOffset, header.publicKeyMetadataSize, aux);
+        checkRegion("descriptors", header.descriptorsOffset, header.descriptorsSize, aux);
+        return (int) (VerifiedBootHeader.HEADER_SIZE + auth + aux);
+    }
+
+    // offsets and sizes are already known to be non-negative
+    private static void checkRegion(String name, long offset, long size, long blockSize) {
+        if (offset > blockSize || size > blockSize - offset) {
+            throw new InvalidAvbDataException(name + " outside of its data block");
+        }
+    }
+}
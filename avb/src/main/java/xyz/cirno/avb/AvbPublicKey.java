@@ -8,7 +8,9 @@ import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import xyz.cirno.avb.util.IOUtils;
 
@@ -16,6 +18,12 @@ public final class AvbPublicKey {
     private final RSAPublicKey publicKey;
     public static final int EXPONENT = 65537;
     public final int keySizeBits;
+    // serialized form, computing n0inv and r^2 mod n is not free
+    private volatile byte[] encoded;
+
+    // parsed keys by modulus, the same few keys show up in every vbmeta image
+    private static final int PARSED_CACHE_LIMIT = 256;
+    private static final Map<ByteBuffer, AvbPublicKey> parsedKeys = new ConcurrentHashMap<>();
 
     public AvbPublicKey(RSAPublicKey key) {
         publicKey = Objects.requireNonNull(key);
@@ -30,18 +38,31 @@ public final class AvbPublicKey {
         InvalidAvbDataException.checkUnsignedOverflow(bits);
         // n0inv is stored but we don't need it to reconstruct the public key
         var n0inv = buf.getInt();
-        int byteLen = bits / 8;
+        if (bits % 8 != 0) {
+            throw new InvalidAvbDataException("invalid public key size " + bits);
+        }
+        int byteLen = InvalidAvbDataException.checkLength(bits / 4, buf) / 2;
         var modulusBytes = new byte[byteLen];
         buf.get(modulusBytes);
         var r2modNBytes = new byte[byteLen];
         buf.get(r2modNBytes);
+        var cacheKey = ByteBuffer.wrap(modulusBytes);
+        var cached = parsedKeys.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
         var modulus = new BigInteger(1, modulusBytes);
         var exp = BigInteger.valueOf(EXPONENT);
         try {
             var spec = new RSAPublicKeySpec(modulus, exp);
             var kf = KeyFactory.getInstance("RSA");
             var pub = (RSAPublicKey) kf.generatePublic(spec);
-            return new AvbPublicKey(pub);
+            var key = new AvbPublicKey(pub);
+            if (parsedKeys.size() >= PARSED_CACHE_LIMIT) {
+                parsedKeys.clear();
+            }
+            parsedKeys.put(cacheKey, key);
+            return key;
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             throw new RuntimeException("Failed to construct RSAPublicKey from buffer", e);
         }
@@ -74,6 +95,15 @@ public final class AvbPublicKey {
     }
 
     public byte[] toByteArray() {
+        var result = encoded;
+        if (result == null) {
+            result = encode();
+            encoded = result;
+        }
+        return result.clone();
+    }
+
+    private byte[] encode() {
         var modulus = publicKey.getModulus();
         var b = BigInteger.ONE.shiftLeft(32);
         var n0inv = b.subtract(modulus.modInverse(b));
@@ -0,0 +1,17 @@
+package xyz.cirno.avb;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Produces vbmeta signatures, either in-process ({@link AvbKeyPair}) or by delegating to something that holds
+ * the private key, like avbtool's {@code --signing_helper} ({@link SigningHelperSigner}).
+ */
+public interface AvbSigner {
+    AvbPublicKey publicKey();
+
+    /**
+     * @param data the serialized vbmeta header followed by the auxiliary data block
+     * @return the raw RSA signature of {@code data}, {@link AvbAlgorithmType#getSignatureSize()} bytes long
+     */
+    CompletableFuture<byte[]> sign(AvbAlgorithmType algorithm, byte[] data);
+}
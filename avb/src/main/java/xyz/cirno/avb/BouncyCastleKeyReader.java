@@ -0,0 +1,35 @@
+package xyz.cirno.avb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.PrivateKey;
+
+/**
+ * Fallback for PEM formats {@link PrivateKeyReader} does not understand.
+ * <p>
+ * Kept in its own class so BouncyCastle is only loaded if such a key is actually encountered.
+ */
+final class BouncyCastleKeyReader {
+    private BouncyCastleKeyReader() {
+    }
+
+    @Nullable
+    static PrivateKey read(String pem) {
+        try (var pemParser = new org.bouncycastle.openssl.PEMParser(new StringReader(pem))) {
+            var object = pemParser.readObject();
+            var converter = new org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter();
+            if (object instanceof org.bouncycastle.openssl.PEMKeyPair) {
+                return converter.getPrivateKey(((org.bouncycastle.openssl.PEMKeyPair) object).getPrivateKeyInfo());
+            } else if (object instanceof org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo) {
+                return null;
+            } else if (object instanceof org.bouncycastle.asn1.pkcs.PrivateKeyInfo) {
+                return converter.getPrivateKey((org.bouncycastle.asn1.pkcs.PrivateKeyInfo) object);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return null;
+    }
+}
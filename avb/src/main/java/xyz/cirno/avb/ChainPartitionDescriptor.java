@@ -38,11 +38,11 @@ public class ChainPartitionDescriptor extends AvbDescriptor {
         h.flags = buf.getInt();
         buf.get(h.reserved);
 
-        var partBytes = new byte[partitionLen];
+        var partBytes = new byte[InvalidAvbDataException.checkLength(partitionLen, buf)];
         if (partitionLen > 0) buf.get(partBytes);
         h.partitionName = new String(partBytes, StandardCharsets.UTF_8);
 
-        var publicKeyBytes = new byte[pubKeyLen];
+        var publicKeyBytes = new byte[InvalidAvbDataException.checkLength(pubKeyLen, buf)];
         if (pubKeyLen > 0) buf.get(publicKeyBytes);
 
         h.publicKey = AvbPublicKey.parseFrom(ByteBuffer.wrap(publicKeyBytes));
@@ -57,14 +57,14 @@ public class HashDescriptor extends AvbDescriptor {
 
         buf.get(h.reserved);
 
-        var partBytes = new byte[partitionLen];
+        var partBytes = new byte[InvalidAvbDataException.checkLength(partitionLen, buf)];
         if (partitionLen > 0) buf.get(partBytes);
         h.partitionName = new String(partBytes, StandardCharsets.UTF_8);
 
-        h.salt = new byte[saltLen];
+        h.salt = new byte[InvalidAvbDataException.checkLength(saltLen, buf)];
         if (saltLen > 0) buf.get(h.salt);
 
-        h.digest = new byte[digestLen];
+        h.digest = new byte[InvalidAvbDataException.checkLength(digestLen, buf)];
         if (digestLen > 0) buf.get(h.digest);
 
         return h;
@@ -0,0 +1,148 @@
+package xyz.cirno.avb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Adds a hash footer to an image in place, like {@code avbtool add_hash_footer}.
+ * <p>
+ * The image is hashed in one streamed pass, then padded to a block boundary, and the vbmeta image and footer are
+ * written after it. Nothing is copied: the space between vbmeta and the footer is left as a hole, and an existing
+ * footer is replaced by truncating the image to its original size first.
+ */
+public class HashFooterWriter {
+    public static final String RELEASE_STRING = "avbtool 1.3.0";
+    public static final int BLOCK_SIZE = 4096;
+    // space avbtool reserves for vbmeta and footer when the partition size is given
+    public static final int MAX_VBMETA_SIZE = 64 * 1024;
+    public static final int MAX_FOOTER_SIZE = 4096;
+
+    public String partitionName;
+    // 0 to use the smallest size that fits, like avbtool --dynamic_partition_size
+    public long partitionSize = 0;
+    public String hashAlgorithm = "sha256";
+    // null to generate a random salt as long as the digest
+    public byte[] salt = null;
+    public AvbAlgorithmType algorithmType = AvbAlgorithmType.NONE;
+    public long rollbackIndex = 0;
+    public int rollbackIndexLocation = 0;
+    public int flags = 0;
+    // added after the hash descriptor, e.g. PropertyDescriptor
+    public final List<AvbDescriptor> extraDescriptors = new ArrayList<>();
+
+    public HashFooterWriter(String partitionName) {
+        this.partitionName = partitionName;
+    }
+
+    /**
+     * @param signer signs the vbmeta image, must be null if {@link #algorithmType} is NONE
+     * @return the footer that was written
+     */
+    public VerifiedBootFooter writeTo(SeekableByteChannel image, @Nullable AvbSigner signer) throws IOException {
+        if ((signer == null) != (algorithmType == AvbAlgorithmType.NONE)) {
+            throw new IllegalArgumentException("a signer is required exactly when algorithmType is not NONE");
+        }
+        if (partitionSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("partition size " + partitionSize + " is not a multiple of " + BLOCK_SIZE);
+        }
+        var originalSize = image.size();
+        if (originalSize >= VerifiedBootFooter.FOOTER_SIZE) {
+            var info = AvbPartitionInfo.ofPartition(image);
+            if (info != null && info.hasFooter()) {
+                originalSize = info.footer.originalImageSize;
+            }
+        }
+        if (partitionSize != 0) {
+            if (partitionSize < MAX_VBMETA_SIZE + MAX_FOOTER_SIZE) {
+                throw new IllegalArgumentException("partition size " + partitionSize + " is too small for vbmeta and footer");
+            }
+            var maxImageSize = partitionSize - MAX_VBMETA_SIZE - MAX_FOOTER_SIZE;
+            if (originalSize > maxImageSize) {
+                throw new IllegalArgumentException("image size " + originalSize + " exceeds maximum image size "
+                        + maxImageSize + " for partition size " + partitionSize);
+            }
+        }
+
+        var vbmeta = new VerifiedBootMetaImage();
+        vbmeta.header = new VerifiedBootHeader();
+        vbmeta.header.requiredLibavbVersionMajor = 1;
+        if (rollbackIndexLocation > 0) {
+            vbmeta.header.requiredLibavbVersionMinor = 2;
+        }
+        vbmeta.header.algorithmType = algorithmType;
+        vbmeta.header.rollbackIndex = rollbackIndex;
+        vbmeta.header.rollbackIndexLocation = rollbackIndexLocation;
+        vbmeta.header.flags = flags;
+        var release = RELEASE_STRING.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(release, 0, vbmeta.header.releaseString, 0, release.length);
+        vbmeta.descriptors = new ArrayList<>();
+        vbmeta.descriptors.add(hashImage(image, originalSize));
+        vbmeta.descriptors.addAll(extraDescriptors);
+        var blob = signer == null ? vbmeta.toUnsignedByteArray() : vbmeta.toSignedByteArrayAsync(signer).join();
+
+        var vbmetaOffset = IOUtils.alignTo(originalSize, BLOCK_SIZE);
+        var paddedVbmetaSize = IOUtils.alignTo((long) blob.length, BLOCK_SIZE);
+        var size = partitionSize != 0 ? partitionSize : vbmetaOffset + paddedVbmetaSize + BLOCK_SIZE;
+        if (vbmetaOffset + paddedVbmetaSize > size - BLOCK_SIZE) {
+            throw new IllegalArgumentException("vbmeta image of " + blob.length + " bytes does not fit into partition size " + size);
+        }
+
+        if (image.size() > originalSize) {
+            image.truncate(originalSize);
+        }
+        var padded = ByteBuffer.allocate((int) (vbmetaOffset - originalSize + paddedVbmetaSize));
+        padded.position((int) (vbmetaOffset - originalSize));
+        padded.put(blob);
+        padded.clear();
+        image.position(originalSize);
+        IOUtils.writeFully(image, padded);
+
+        var footer = new VerifiedBootFooter();
+        footer.versionMajor = 1;
+        footer.versionMinor = 0;
+        footer.originalImageSize = originalSize;
+        footer.vbmetaOffset = vbmetaOffset;
+        footer.vbmetaSize = blob.length;
+        image.position(size - VerifiedBootFooter.FOOTER_SIZE);
+        IOUtils.writeFully(image, ByteBuffer.wrap(footer.toByteArray()));
+        return footer;
+    }
+
+    private HashDescriptor hashImage(SeekableByteChannel image, long size) throws IOException {
+        MessageDigest hasher;
+        try {
+            hasher = MessageDigest.getInstance(hashAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unsupported hash algorithm " + hashAlgorithm);
+        }
+        var actualSalt = salt;
+        if (actualSalt == null) {
+            actualSalt = new byte[hasher.getDigestLength()];
+            new SecureRandom().nextBytes(actualSalt);
+        }
+        hasher.update(actualSalt);
+        image.position(0);
+        var buffer = ByteBuffer.allocateDirect(1048576);
+        var remaining = size;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            IOUtils.readFully(image, buffer);
+            remaining -= buffer.position();
+            buffer.flip();
+            hasher.update(buffer);
+        }
+        return new HashDescriptor(size, hashAlgorithm, partitionName, actualSalt, hasher.digest(), 0);
+    }
+}
@@ -57,14 +57,14 @@ public class HashTreeDescriptor extends AvbDescriptor {
 
         buf.get(h.reserved);
 
-        var partitionBytes = new byte[partitionNameLen];
+        var partitionBytes = new byte[InvalidAvbDataException.checkLength(partitionNameLen, buf)];
         if (partitionNameLen > 0) buf.get(partitionBytes);
         h.partitionName = new String(partitionBytes, StandardCharsets.UTF_8);
 
-        h.salt = new byte[saltLen];
+        h.salt = new byte[InvalidAvbDataException.checkLength(saltLen, buf)];
         if (saltLen > 0) buf.get(h.salt);
 
-        h.rootDigest = new byte[rootDigestLen];
+        h.rootDigest = new byte[InvalidAvbDataException.checkLength(rootDigestLen, buf)];
         if (rootDigestLen > 0) buf.get(h.rootDigest);
 
         return h;
@@ -1,5 +1,7 @@
 package xyz.cirno.avb;
 
+import java.nio.ByteBuffer;
+
 public class InvalidAvbDataException extends RuntimeException {
     public InvalidAvbDataException(String message) {
         super(message);
@@ -16,4 +18,14 @@ public class InvalidAvbDataException extends RuntimeException {
             throw new InvalidAvbDataException("signed int64 overflow");
         }
     }
+
+    /**
+     * Checks that {@code length} bytes can still be read from {@code buf}, before an array is allocated for them.
+     */
+    public static int checkLength(long length, ByteBuffer buf) {
+        if (length < 0 || length > buf.remaining()) {
+            throw new InvalidAvbDataException("length " + length + " exceeds the " + buf.remaining() + " bytes left");
+        }
+        return (int) length;
+    }
 }
@@ -27,7 +27,7 @@ public class KernelCmdlineDescriptor extends AvbDescriptor {
         h.flags = buf.getInt();
         int len = buf.getInt();
         InvalidAvbDataException.checkUnsignedOverflow(len);
-        var cmdBytes = new byte[len];
+        var cmdBytes = new byte[InvalidAvbDataException.checkLength(len, buf)];
         if (len > 0) buf.get(cmdBytes);
         h.kernelCmdline = new String(cmdBytes, StandardCharsets.UTF_8);
         return h;
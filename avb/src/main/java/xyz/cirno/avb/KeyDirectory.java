@@ -0,0 +1,150 @@
+package xyz.cirno.avb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import xyz.cirno.avb.util.IOUtils;
+import xyz.cirno.avb.util.Logger;
+
+/**
+ * A directory of PEM private keys that are only parsed when their public key is asked for.
+ * <p>
+ * The AVB public key fingerprint (sha256 of {@link AvbPublicKey#toByteArray()}) of every file is kept in
+ * {@value #INDEX_FILE_NAME} inside the directory. Entries are reused while file size and mtime match, so
+ * opening a directory parses only new or modified files.
+ */
+public final class KeyDirectory {
+    public static final String INDEX_FILE_NAME = ".avbsign-keyindex";
+    private static final String INDEX_HEADER = "# avbsign key index v1";
+    // fingerprint of files that are not usable private keys
+    private static final String NO_KEY = "-";
+
+    private final Map<String, Path> keyFiles = new HashMap<>();
+    private final Map<String, AvbKeyPair> loaded = new HashMap<>();
+
+    private KeyDirectory() {
+    }
+
+    public static KeyDirectory open(Path dir) throws IOException {
+        var indexPath = dir.resolve(INDEX_FILE_NAME);
+        var index = readIndex(indexPath);
+        var newIndex = new ArrayList<IndexEntry>();
+        var changed = false;
+        var result = new KeyDirectory();
+        try (var iter = Files.list(dir)) {
+            for (var f : (Iterable<Path>) iter::iterator) {
+                var name = f.getFileName().toString();
+                if (name.startsWith(INDEX_FILE_NAME)) {
+                    continue;
+                }
+                var attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                var mtime = attrs.lastModifiedTime().toMillis();
+                var entry = index.get(name);
+                if (entry == null || entry.size != attrs.size() || entry.mtime != mtime) {
+                    var keypair = AvbKeyPair.fromPrivateKeyPem(f);
+                    var fingerprint = keypair == null ? NO_KEY : fingerprintOf(keypair.publicKey);
+                    entry = new IndexEntry(fingerprint, attrs.size(), mtime, name);
+                    if (keypair != null) {
+                        result.loaded.put(fingerprint, keypair);
+                    }
+                    changed = true;
+                }
+                newIndex.add(entry);
+                if (!entry.fingerprint.equals(NO_KEY)) {
+                    result.keyFiles.put(entry.fingerprint, f);
+                }
+            }
+        }
+        if (changed || newIndex.size() != index.size()) {
+            writeIndex(indexPath, newIndex);
+        }
+        return result;
+    }
+
+    public static String fingerprintOf(AvbPublicKey publicKey) {
+        return IOUtils.sha256ToHex(publicKey.toByteArray());
+    }
+
+    public synchronized boolean isEmpty() {
+        return keyFiles.isEmpty();
+    }
+
+    public synchronized int size() {
+        return keyFiles.size();
+    }
+
+    /**
+     * @return the key pair for {@code publicKey}, parsing its PEM file on first use, or null if not in this directory
+     */
+    @Nullable
+    public synchronized AvbKeyPair findKeyPair(AvbPublicKey publicKey) {
+        var fingerprint = fingerprintOf(publicKey);
+        var keypair = loaded.get(fingerprint);
+        if (keypair == null) {
+            var path = keyFiles.get(fingerprint);
+            if (path == null) {
+                return null;
+            }
+            keypair = AvbKeyPair.fromPrivateKeyPem(path);
+            if (keypair == null || !keypair.publicKey.equals(publicKey)) {
+                // replaced since the index was validated
+                Logger.warn("Key file " + path + " no longer matches its index entry");
+                return null;
+            }
+            loaded.put(fingerprint, keypair);
+        }
+        Logger.info("Loaded key with public key hash " + fingerprint);
+        return keypair;
+    }
+
+    private static Map<String, IndexEntry> readIndex(Path indexPath) {
+        var result = new HashMap<String, IndexEntry>();
+        try {
+            var lines = Files.readAllLines(indexPath, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(INDEX_HEADER)) {
+                return result;
+            }
+            for (var line : lines.subList(1, lines.size())) {
+                var parts = line.split(" ", 4);
+                if (parts.length != 4) {
+                    continue;
+                }
+                result.put(parts[3], new IndexEntry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // missing or unreadable index, rebuild it
+            result.clear();
+        }
+        return result;
+    }
+
+    private static void writeIndex(Path indexPath, Iterable<IndexEntry> entries) {
+        var sb = new StringBuilder(INDEX_HEADER).append('\n');
+        for (var e : entries) {
+            sb.append(e.fingerprint).append(' ').append(e.size).append(' ').append(e.mtime).append(' ').append(e.fileName).append('\n');
+        }
+        try {
+            var tmp = indexPath.resolveSibling(INDEX_FILE_NAME + ".tmp");
+            Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+            Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // read-only key directory, keys are simply parsed again next time
+            Logger.debug("Unable to write key index " + indexPath + ": " + e.getMessage());
+        }
+    }
+
+    private record IndexEntry(String fingerprint, long size, long mtime, String fileName) {
+    }
+}
@@ -0,0 +1,22 @@
+package xyz.cirno.avb;
+
+/**
+ * Per-thread buffer that raw vbmeta images are read into while they are parsed. Parsed objects copy what they
+ * keep, so the buffer is reused by the next parse on the same thread instead of allocating one per image.
+ */
+final class ParseArena {
+    // enough for the default limits; images allowed by larger limits get a buffer of their own
+    static final int RETAINED_SIZE = 65536;
+
+    private static final ThreadLocal<byte[]> ARENA = ThreadLocal.withInitial(() -> new byte[RETAINED_SIZE]);
+
+    private ParseArena() {
+    }
+
+    /**
+     * @return a buffer of at least {@code size} bytes, valid until the next call on this thread
+     */
+    static byte[] acquire(int size) {
+        return size <= RETAINED_SIZE ? ARENA.get() : new byte[size];
+    }
+}
@@ -1,13 +1,10 @@
 package xyz.cirno.avb;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 
-import xyz.cirno.avb.util.IOUtils;
-
 public class ParsedVerifiedBootMetaImage extends VerifiedBootMetaImage {
     public AvbPublicKey publicKey;
     public byte[] digest;
@@ -25,21 +22,27 @@ public class ParsedVerifiedBootMetaImage extends VerifiedBootMetaImage {
     }
 
     public static ParsedVerifiedBootMetaImage parseFromPartition(SeekableByteChannel ch) throws IOException {
-        var magicBuf = ByteBuffer.allocate(4);
-        IOUtils.readFully(ch, magicBuf);
-        magicBuf.flip();
-        var magic = magicBuf.getInt();
-        if (magic == VerifiedBootHeader.AVB_MAGIC) {
-            ch.position(0);
-            return parseFrom(ch);
-        }
-        // check for avb footer
-        var footer = VerifiedBootFooter.parseFrom(ch);
-        if (footer == null) {
+        return parseFromPartition(ch, AvbParseLimits.DEFAULT);
+    }
+
+    public static ParsedVerifiedBootMetaImage parseFromPartition(SeekableByteChannel ch, AvbParseLimits limits) throws IOException {
+        var info = AvbPartitionInfo.ofPartition(ch);
+        if (info == null) {
             return null;
         }
-        ch.position(footer.vbmetaOffset);
-        return parseFrom(Channels.newInputStream(ch));
+        ch.position(info.vbmetaOffset);
+        return parseFrom(ch, limits);
+    }
+
+    /**
+     * @return a copy with its own header and descriptor list that shares the descriptors, key and signature with
+     * this image. Replace a descriptor in the list instead of modifying it.
+     */
+    public ParsedVerifiedBootMetaImage shallowCopy() {
+        var copy = new ParsedVerifiedBootMetaImage(header.clone(), publicKey, new ArrayList<>(descriptors), digest,
+                signature, signatureValid);
+        copy.publicKeyMetadata = publicKeyMetadata;
+        return copy;
     }
 
     @Override
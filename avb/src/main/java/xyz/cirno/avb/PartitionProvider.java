@@ -1,7 +1,18 @@
 package xyz.cirno.avb;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.nio.channels.SeekableByteChannel;
 
 public interface PartitionProvider {
     SeekableByteChannel openPartition(String name);
+
+    /**
+     * Identifies the physical device backing a partition, partitions returning equal objects share a device.
+     *
+     * @return null if unknown, all such partitions are treated as sharing one device
+     */
+    default @Nullable Object deviceOf(String name) {
+        return null;
+    }
 }
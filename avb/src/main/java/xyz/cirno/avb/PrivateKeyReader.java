@@ -0,0 +1,162 @@
+package xyz.cirno.avb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Minimal reader for unencrypted PKCS#1 and PKCS#8 RSA private keys, in PEM or DER form.
+ * <p>
+ * Covers the keys avbtool and openssl produce without pulling in a full ASN.1 library.
+ */
+final class PrivateKeyReader {
+    // DER encoding of OID 1.2.840.113549.1.1.1 (rsaEncryption)
+    private static final byte[] RSA_ENCRYPTION_OID = {0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01};
+
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_SEQUENCE = 0x30;
+
+    enum Format {
+        PKCS1,
+        PKCS8,
+        ENCRYPTED,
+        // PEM with a label we do not handle
+        OTHER_PEM,
+        NOT_A_KEY,
+    }
+
+    record Result(Format format, @Nullable PrivateKey key) {
+    }
+
+    private PrivateKeyReader() {
+    }
+
+    static Result read(byte[] data) {
+        var text = new String(data, StandardCharsets.ISO_8859_1);
+        var begin = text.indexOf("-----BEGIN ");
+        if (begin < 0) {
+            // raw DER, try both layouts
+            var key = parsePkcs8(data);
+            if (key != null) {
+                return new Result(Format.PKCS8, key);
+            }
+            key = parsePkcs1(data);
+            return new Result(key != null ? Format.PKCS1 : Format.NOT_A_KEY, key);
+        }
+        var labelEnd = text.indexOf("-----", begin + 11);
+        if (labelEnd < 0) {
+            return new Result(Format.NOT_A_KEY, null);
+        }
+        var label = text.substring(begin + 11, labelEnd);
+        var footer = "-----END " + label + "-----";
+        var end = text.indexOf(footer, labelEnd);
+        if (end < 0) {
+            return new Result(Format.NOT_A_KEY, null);
+        }
+        var body = text.substring(labelEnd + 5, end);
+        if (body.contains("Proc-Type:") || label.equals("ENCRYPTED PRIVATE KEY")) {
+            return new Result(Format.ENCRYPTED, null);
+        }
+        byte[] der;
+        try {
+            der = Base64.getMimeDecoder().decode(body.strip());
+        } catch (IllegalArgumentException e) {
+            return new Result(Format.NOT_A_KEY, null);
+        }
+        return switch (label) {
+            case "RSA PRIVATE KEY" -> new Result(Format.PKCS1, parsePkcs1(der));
+            case "PRIVATE KEY" -> new Result(Format.PKCS8, parsePkcs8(der));
+            default -> new Result(Format.OTHER_PEM, null);
+        };
+    }
+
+    @Nullable
+    static PrivateKey parsePkcs1(byte[] der) {
+        try {
+            var seq = readElement(ByteBuffer.wrap(der), TAG_SEQUENCE);
+            var version = readInteger(seq);
+            if (version.signum() != 0) {
+                // multi-prime keys
+                return null;
+            }
+            var n = readInteger(seq);
+            var e = readInteger(seq);
+            var d = readInteger(seq);
+            var p = readInteger(seq);
+            var q = readInteger(seq);
+            var dp = readInteger(seq);
+            var dq = readInteger(seq);
+            var qinv = readInteger(seq);
+            var spec = new RSAPrivateCrtKeySpec(n, e, d, p, q, dp, dq, qinv);
+            return KeyFactory.getInstance("RSA").generatePrivate(spec);
+        } catch (IllegalArgumentException | java.nio.BufferUnderflowException | GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    @Nullable
+    static PrivateKey parsePkcs8(byte[] der) {
+        try {
+            // PrivateKeyInfo ::= SEQUENCE { version, AlgorithmIdentifier, OCTET STRING privateKey, ... }
+            var seq = readElement(ByteBuffer.wrap(der), TAG_SEQUENCE);
+            readInteger(seq);
+            var algorithm = readElement(seq, TAG_SEQUENCE);
+            var oid = new byte[Math.min(RSA_ENCRYPTION_OID.length, algorithm.remaining())];
+            algorithm.get(oid);
+            if (!Arrays.equals(oid, RSA_ENCRYPTION_OID)) {
+                return null;
+            }
+            readElement(seq, TAG_OCTET_STRING);
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(der));
+        } catch (IllegalArgumentException | java.nio.BufferUnderflowException | GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads one DER element with the given tag and returns a buffer over its contents.
+     */
+    private static ByteBuffer readElement(ByteBuffer buf, int expectedTag) {
+        var tag = buf.get() & 0xff;
+        if (tag != expectedTag) {
+            throw new IllegalArgumentException("unexpected tag " + tag);
+        }
+        var length = buf.get() & 0xff;
+        if ((length & 0x80) != 0) {
+            var lengthBytes = length & 0x7f;
+            if (lengthBytes == 0 || lengthBytes > 3) {
+                throw new IllegalArgumentException("unsupported length encoding");
+            }
+            length = 0;
+            for (var i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (buf.get() & 0xff);
+            }
+        }
+        if (length > buf.remaining()) {
+            throw new IllegalArgumentException("truncated element");
+        }
+        var content = buf.slice(buf.position(), length);
+        buf.position(buf.position() + length);
+        return content;
+    }
+
+    private static BigInteger readInteger(ByteBuffer buf) {
+        var content = readElement(buf, TAG_INTEGER);
+        if (!content.hasRemaining()) {
+            throw new IllegalArgumentException("empty integer");
+        }
+        var bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return new BigInteger(bytes);
+    }
+}
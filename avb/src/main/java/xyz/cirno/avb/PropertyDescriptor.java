@@ -18,12 +18,12 @@ public class PropertyDescriptor extends AvbDescriptor {
         InvalidAvbDataException.checkUnsignedOverflow(keyLen);
         var valueLen = buf.getLong();
         InvalidAvbDataException.checkUnsignedOverflow(valueLen);
-        var keyBytes = new byte[(int) keyLen];
+        var keyBytes = new byte[InvalidAvbDataException.checkLength(keyLen, buf)];
         buf.get(keyBytes);
         if (buf.get() != 0) {
             throw new InvalidAvbDataException("string without nul terminator in PropertyDescriptor");
         }
-        var valueBytes = new byte[(int) valueLen];
+        var valueBytes = new byte[InvalidAvbDataException.checkLength(valueLen, buf)];
         buf.get(valueBytes);
         if (buf.get() != 0) {
             throw new InvalidAvbDataException("string without nul terminator in PropertyDescriptor");
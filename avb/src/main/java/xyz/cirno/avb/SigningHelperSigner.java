@@ -0,0 +1,153 @@
+package xyz.cirno.avb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Signs by running an external program with avbtool's {@code --signing_helper} conventions:
+ * it is invoked as {@code <command...> <ALGORITHM_NAME> <key path>}, gets the PKCS#1 v1.5 padded digest on
+ * stdin and must write the raw signature to stdout.
+ * <p>
+ * Each signature runs one helper process on {@code executor}, so the size of that pool bounds how many
+ * helpers run at once.
+ */
+public final class SigningHelperSigner implements AvbSigner {
+    // DER DigestInfo prefixes from RFC 8017 section 9.2
+    private static final byte[] SHA256_DIGEST_INFO = {
+            0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+    private static final byte[] SHA512_DIGEST_INFO = {
+            0x30, 0x51, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x03, 0x05, 0x00, 0x04, 0x40};
+
+    private final List<String> command;
+    private final String keyPath;
+    private final AvbPublicKey publicKey;
+    private final Executor executor;
+
+    public SigningHelperSigner(List<String> command, String keyPath, AvbPublicKey publicKey, Executor executor) {
+        this.command = List.copyOf(command);
+        this.keyPath = keyPath;
+        this.publicKey = publicKey;
+        this.executor = executor;
+    }
+
+    @Override
+    public AvbPublicKey publicKey() {
+        return publicKey;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> sign(AvbAlgorithmType algorithm, byte[] data) {
+        return CompletableFuture.supplyAsync(() -> runHelper(algorithm, data), executor);
+    }
+
+    private byte[] runHelper(AvbAlgorithmType algorithm, byte[] data) {
+        var input = paddedDigest(algorithm, data);
+        var args = new ArrayList<>(command);
+        args.add(algorithm.name());
+        args.add(keyPath);
+        byte[] signature;
+        try {
+            var process = new ProcessBuilder(args)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try (var stdin = process.getOutputStream()) {
+                stdin.write(input);
+            }
+            try (var stdout = process.getInputStream()) {
+                signature = stdout.readAllBytes();
+            }
+            var exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new RuntimeException("Signing helper " + command.get(0) + " exited with code " + exitCode);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to run signing helper " + command.get(0), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for signing helper", e);
+        }
+        if (signature.length != algorithm.getSignatureSize()) {
+            throw new RuntimeException("Signing helper returned " + signature.length + " bytes, expected " + algorithm.getSignatureSize());
+        }
+        try {
+            var sig = Signature.getInstance(algorithm.getSignatureAlgorithm());
+            sig.initVerify(publicKey.getPublicKey());
+            sig.update(data);
+            if (!sig.verify(signature)) {
+                throw new RuntimeException("Signing helper returned a signature that does not match " + publicKey);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to check signature from signing helper", e);
+        }
+        return signature;
+    }
+
+    /**
+     * @return EMSA-PKCS1-v1_5 encoding of the digest of {@code data}, the block the helper has to sign
+     */
+    static byte[] paddedDigest(AvbAlgorithmType algorithm, byte[] data) {
+        var digestAlgorithm = algorithm.getDigestAlgorithm();
+        if (digestAlgorithm == null) {
+            throw new InvalidAvbDataException("invalid algorithmType");
+        }
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance(digestAlgorithm).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to get digest instance", e);
+        }
+        var digestInfo = algorithm.getHashSize() == 32 ? SHA256_DIGEST_INFO : SHA512_DIGEST_INFO;
+        var buf = ByteBuffer.allocate(algorithm.getSignatureSize());
+        buf.put((byte) 0x00).put((byte) 0x01);
+        var paddingSize = buf.capacity() - 3 - digestInfo.length - digest.length;
+        for (var i = 0; i < paddingSize; i++) {
+            buf.put((byte) 0xff);
+        }
+        buf.put((byte) 0x00).put(digestInfo).put(digest);
+        return buf.array();
+    }
+
+    /**
+     * Reads the public key for {@code --signing_helper} style signing from a PEM public key, a PEM private key,
+     * or an AVB public key blob as written by {@code avbtool extract_public_key}.
+     */
+    public static AvbPublicKey readPublicKey(Path path) throws IOException {
+        var data = Files.readAllBytes(path);
+        var text = new String(data, StandardCharsets.ISO_8859_1);
+        if (text.contains("-----BEGIN PUBLIC KEY-----")) {
+            var body = text.substring(text.indexOf("-----BEGIN PUBLIC KEY-----") + 26, text.indexOf("-----END PUBLIC KEY-----"));
+            try {
+                var spec = new X509EncodedKeySpec(Base64.getMimeDecoder().decode(body.strip()));
+                return new AvbPublicKey((RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(spec));
+            } catch (GeneralSecurityException | IllegalArgumentException | ClassCastException e) {
+                throw new InvalidAvbDataException("invalid public key in " + path);
+            }
+        }
+        if (text.contains("-----BEGIN ")) {
+            var keyPair = AvbKeyPair.fromPrivateKeyPem(path);
+            if (keyPair == null) {
+                throw new InvalidAvbDataException("unsupported key file " + path);
+            }
+            return keyPair.publicKey;
+        }
+        if (data.length < 8 || ByteBuffer.wrap(data).getInt(0) / 8 * 2 + 8 != data.length) {
+            throw new InvalidAvbDataException("not an AVB public key: " + path);
+        }
+        return AvbPublicKey.parseFrom(ByteBuffer.wrap(data));
+    }
+}
@@ -0,0 +1,110 @@
+package xyz.cirno.avb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Builds a standalone vbmeta image like {@code avbtool make_vbmeta_image}, with the same descriptor order and
+ * header fields so the output is byte-identical for the same inputs.
+ */
+public class VbmetaImageBuilder {
+    public AvbAlgorithmType algorithmType = AvbAlgorithmType.NONE;
+    public long rollbackIndex = 0;
+    public int rollbackIndexLocation = 0;
+    public int flags = 0;
+    // appended to the release string after a space, like avbtool --append_to_release_string
+    public String appendToReleaseString = null;
+    // the image is zero padded to a multiple of this, 0 for no padding
+    public int paddingSize = 0;
+    public final List<ChainPartitionDescriptor> chainPartitions = new ArrayList<>();
+    public final List<PropertyDescriptor> properties = new ArrayList<>();
+    public final List<KernelCmdlineDescriptor> kernelCmdlines = new ArrayList<>();
+    // images whose descriptors are included, like avbtool --include_descriptors_from_image
+    public final List<VerifiedBootMetaImage> includedImages = new ArrayList<>();
+
+    /**
+     * @param signer signs the image, must be null if {@link #algorithmType} is NONE
+     */
+    public CompletableFuture<byte[]> build(@Nullable AvbSigner signer) {
+        if ((signer == null) != (algorithmType == AvbAlgorithmType.NONE)) {
+            throw new IllegalArgumentException("a signer is required exactly when algorithmType is not NONE");
+        }
+        var vbmeta = new VerifiedBootMetaImage();
+        vbmeta.header = createHeader();
+        vbmeta.descriptors = collectDescriptors();
+        for (var image : includedImages) {
+            vbmeta.header.requiredLibavbVersionMinor = Math.max(vbmeta.header.requiredLibavbVersionMinor,
+                    image.header.requiredLibavbVersionMinor);
+        }
+        var blob = signer == null ? CompletableFuture.completedFuture(vbmeta.toUnsignedByteArray())
+                : vbmeta.toSignedByteArrayAsync(signer);
+        return blob.thenApply(this::pad);
+    }
+
+    private VerifiedBootHeader createHeader() {
+        var header = new VerifiedBootHeader();
+        header.requiredLibavbVersionMajor = 1;
+        if (rollbackIndexLocation > 0) {
+            header.requiredLibavbVersionMinor = 2;
+        }
+        if (chainPartitions.stream().anyMatch(c -> (c.flags & ChainPartitionDescriptor.FLAG_DO_NOT_USE_AB) != 0)) {
+            header.requiredLibavbVersionMinor = 3;
+        }
+        header.algorithmType = algorithmType;
+        header.rollbackIndex = rollbackIndex;
+        header.rollbackIndexLocation = rollbackIndexLocation;
+        header.flags = flags;
+        var release = HashFooterWriter.RELEASE_STRING;
+        if (appendToReleaseString != null) {
+            release += " " + appendToReleaseString;
+        }
+        var releaseBytes = release.getBytes(StandardCharsets.UTF_8);
+        // the last byte must stay NUL
+        if (releaseBytes.length >= header.releaseString.length) {
+            throw new IllegalArgumentException("release string \"" + release + "\" is too long");
+        }
+        System.arraycopy(releaseBytes, 0, header.releaseString, 0, releaseBytes.length);
+        return header;
+    }
+
+    // same order as avbtool: chain partitions, properties, kernel command lines, then included descriptors
+    private List<AvbDescriptor> collectDescriptors() {
+        var descriptors = new ArrayList<AvbDescriptor>();
+        descriptors.addAll(chainPartitions);
+        descriptors.addAll(properties);
+        descriptors.addAll(kernelCmdlines);
+        // only the last included descriptor of each partition is kept, ordered by avbtool's class name and partition
+        var named = new TreeMap<String, AvbDescriptor>();
+        for (var image : includedImages) {
+            for (var desc : image.descriptors) {
+                if (desc instanceof HashDescriptor hd) {
+                    named.put("AvbHashDescriptor_" + hd.partitionName, hd);
+                } else if (desc instanceof HashTreeDescriptor htd) {
+                    named.put("AvbHashtreeDescriptor_" + htd.partitionName, htd);
+                } else if (desc instanceof ChainPartitionDescriptor cpd) {
+                    named.put("AvbChainPartitionDescriptor_" + cpd.partitionName, cpd);
+                } else {
+                    descriptors.add(desc);
+                }
+            }
+        }
+        descriptors.addAll(named.values());
+        return descriptors;
+    }
+
+    private byte[] pad(byte[] blob) {
+        if (paddingSize <= 0) {
+            return blob;
+        }
+        var padded = new byte[IOUtils.alignTo(blob.length, paddingSize)];
+        System.arraycopy(blob, 0, padded, 0, blob.length);
+        return padded;
+    }
+}
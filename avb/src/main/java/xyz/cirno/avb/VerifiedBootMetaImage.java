@@ -14,10 +14,10 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
-import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 import xyz.cirno.avb.util.IOUtils;
 import xyz.cirno.avb.util.Logger;
@@ -32,6 +32,10 @@ public class VerifiedBootMetaImage {
     }
 
     public static ParsedVerifiedBootMetaImage parseFrom(ReadableByteChannel ch) throws IOException {
+        return parseFrom(ch, AvbParseLimits.DEFAULT);
+    }
+
+    public static ParsedVerifiedBootMetaImage parseFrom(ReadableByteChannel ch, AvbParseLimits limits) throws IOException {
         var headerBuf = ByteBuffer.allocate(VerifiedBootHeader.HEADER_SIZE);
         IOUtils.readFully(ch, headerBuf);
         headerBuf.flip();
@@ -39,12 +43,15 @@ public class VerifiedBootMetaImage {
         if (header == null) {
             return null;
         }
-        var authDataBuf = ByteBuffer.allocate((int) header.authenticationDataBlockSize);
-        IOUtils.readFully(ch, authDataBuf);
-        authDataBuf.flip();
-        var auxDataBuf = ByteBuffer.allocate((int) header.auxiliaryDataBlockSize);
-        IOUtils.readFully(ch, auxDataBuf);
-        auxDataBuf.flip();
+        var imageSize = limits.checkVbmetaSize(header);
+        var arena = ParseArena.acquire(imageSize);
+        var headerSize = VerifiedBootHeader.HEADER_SIZE;
+        var authSize = (int) header.authenticationDataBlockSize;
+        var auxSize = (int) header.auxiliaryDataBlockSize;
+        System.arraycopy(headerBuf.array(), 0, arena, 0, headerSize);
+        IOUtils.readFully(ch, ByteBuffer.wrap(arena, headerSize, authSize + auxSize));
+        var authDataBuf = ByteBuffer.wrap(arena, headerSize, authSize).slice();
+        var auxDataBuf = ByteBuffer.wrap(arena, headerSize + authSize, auxSize).slice();
 
         AvbPublicKey publicKey = null;
         if (header.publicKeySize != 0) {
@@ -69,6 +76,9 @@ public class VerifiedBootMetaImage {
         var descriptors = new ArrayList<AvbDescriptor>();
 
         while (descriptorBuf.remaining() >= AvbDescriptor.DESCRIPTOR_HEADER_SIZE) {
+            if (descriptors.size() >= limits.maxDescriptors()) {
+                throw new InvalidAvbDataException("more than " + limits.maxDescriptors() + " descriptors");
+            }
             var desc = AvbDescriptor.parseFrom(descriptorBuf);
             descriptors.add(desc);
         }
@@ -90,8 +100,8 @@ public class VerifiedBootMetaImage {
                 Logger.error("unsupported digest algorithm: " + digestAlgo);
                 break;
             }
-            hasher.update(headerBuf.array(), headerBuf.arrayOffset(), headerBuf.capacity());
-            hasher.update(auxDataBuf.array(), auxDataBuf.arrayOffset(), auxDataBuf.capacity());
+            hasher.update(arena, 0, headerSize);
+            hasher.update(arena, headerSize + authSize, auxSize);
             var computedDigest = hasher.digest();
             if (!MessageDigest.isEqual(digest, computedDigest)) {
                 Logger.warn("digest mismatch");
@@ -106,8 +116,8 @@ public class VerifiedBootMetaImage {
                 try {
                     var sig = Signature.getInstance(signatureAlgorithm);
                     sig.initVerify(publicKey.getPublicKey());
-                    sig.update(headerBuf.array(), headerBuf.arrayOffset(), headerBuf.capacity());
-                    sig.update(auxDataBuf.array(), auxDataBuf.arrayOffset(), auxDataBuf.capacity());
+                    sig.update(arena, 0, headerSize);
+                    sig.update(arena, headerSize + authSize, auxSize);
                     sigValid = sig.verify(signature);
                 } catch (NoSuchAlgorithmException e) {
                     Logger.error("unsupported signature algorithm: " + signatureAlgorithm);
@@ -141,9 +151,10 @@ public class VerifiedBootMetaImage {
         header.hashSize = 0;
         header.signatureOffset = 0;
         header.signatureSize = 0;
-        header.publicKeyOffset = 0;
+        // avbtool places the (empty) public key and metadata after the descriptors even when unsigned
+        header.publicKeyOffset = descSize;
         header.publicKeySize = 0;
-        header.publicKeyMetadataOffset = 0;
+        header.publicKeyMetadataOffset = descSize;
         header.publicKeyMetadataSize = 0;
         header.descriptorsOffset = 0;
         header.descriptorsSize = descSize;
@@ -164,11 +175,24 @@ public class VerifiedBootMetaImage {
 
     public byte[] toSignedByteArray(@NotNull AvbKeyPair keyPair) {
         Objects.requireNonNull(keyPair);
+        var tbs = prepareSigned(keyPair.publicKey);
+        return tbs.finish(keyPair.signNow(header.algorithmType, tbs.signedData()));
+    }
+
+    /**
+     * Like {@link #toSignedByteArray(AvbKeyPair)}, but the signature is produced by {@code signer}.
+     * The header is updated before this returns, only signing and assembling the image happen later.
+     */
+    public CompletableFuture<byte[]> toSignedByteArrayAsync(@NotNull AvbSigner signer) {
+        Objects.requireNonNull(signer);
+        var tbs = prepareSigned(signer.publicKey());
+        return signer.sign(header.algorithmType, tbs.signedData()).thenApply(tbs::finish);
+    }
+
+    private ToBeSigned prepareSigned(AvbPublicKey pubkey) {
         if (header.algorithmType == AvbAlgorithmType.NONE) {
             throw new InvalidAvbDataException("cannot create signed header with algorithmType=NONE");
         }
-        var pubkey = keyPair.publicKey;
-        var privateKey = keyPair.privateKey;
         var pubkeyBuf = pubkey.toByteArray();
         var metadataSize = publicKeyMetadata != null ? publicKeyMetadata.length : 0;
         var serializedDescriptors = descriptors.stream().map(AvbDescriptor::toByteArray).toList();
@@ -197,7 +221,6 @@ public class VerifiedBootMetaImage {
         if (publicKeyMetadata != null) {
             auxBuf.put(publicKeyMetadata);
         }
-        auxBuf.position(0);
 
         var digestAlgorithm = header.algorithmType.getDigestAlgorithm();
         if (digestAlgorithm == null) {
@@ -210,35 +233,30 @@ public class VerifiedBootMetaImage {
             throw new RuntimeException("Failed to get digest instance", e);
         }
         hasher.update(headerBuf);
-        hasher.update(auxBuf.duplicate());
+        hasher.update(auxBuf.array());
         var digest = hasher.digest();
-        var authBuf = ByteBuffer.allocate((int) header.authenticationDataBlockSize);
-        authBuf.put(digest);
+        return new ToBeSigned(headerBuf, auxBuf.array(), digest, (int) header.authenticationDataBlockSize, header.algorithmType.getSignatureSize());
+    }
 
-        try {
-            var algo = header.algorithmType.getSignatureAlgorithm();
-            assert algo != null;
-            var sig = Signature.getInstance(algo);
-            sig.initSign(privateKey);
-            sig.update(headerBuf);
-            sig.update(auxBuf.duplicate());
-            var signature = sig.sign();
-            authBuf.put(signature);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Failed to get signature instance", e);
-        } catch (InvalidKeyException e) {
-            throw new RuntimeException("invalid private key", e);
-        } catch (SignatureException e) {
-            throw new RuntimeException("Failed to sign digest", e);
+    private record ToBeSigned(byte[] headerBuf, byte[] auxBuf, byte[] digest, int authSize, int signatureSize) {
+        byte[] signedData() {
+            var data = new byte[headerBuf.length + auxBuf.length];
+            System.arraycopy(headerBuf, 0, data, 0, headerBuf.length);
+            System.arraycopy(auxBuf, 0, data, headerBuf.length, auxBuf.length);
+            return data;
         }
 
-        authBuf.position(0);
-
-        var totalSize = headerBuf.length + authBuf.remaining() + auxBuf.remaining();
-        var buf = ByteBuffer.allocate(totalSize);
-        buf.put(headerBuf);
-        buf.put(authBuf);
-        buf.put(auxBuf);
-        return buf.array();
+        byte[] finish(byte[] signature) {
+            if (signature.length != signatureSize) {
+                throw new InvalidAvbDataException("signature is " + signature.length + " bytes, expected " + signatureSize);
+            }
+            var buf = ByteBuffer.allocate(headerBuf.length + authSize + auxBuf.length);
+            buf.put(headerBuf);
+            buf.put(digest);
+            buf.put(signature);
+            buf.position(headerBuf.length + authSize);
+            buf.put(auxBuf);
+            return buf.array();
+        }
     }
 }
@@ -0,0 +1,105 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only view of {@code size} bytes of a file starting at {@code offset}, e.g. a stored ZIP entry. Reads go
+ * straight to the file, nothing is copied.
+ */
+final class FileRangeChannel implements SeekableByteChannel {
+    private final FileChannel file;
+    private final long offset;
+    private final long size;
+    private long position = 0;
+    private boolean open = true;
+
+    FileRangeChannel(FileChannel file, long offset, long size) {
+        this.file = file;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        var remaining = size - position;
+        int n;
+        if (dst.remaining() > remaining) {
+            var limit = dst.limit();
+            dst.limit(dst.position() + (int) remaining);
+            try {
+                n = file.read(dst, offset + position);
+            } finally {
+                dst.limit(limit);
+            }
+        } else {
+            n = file.read(dst, offset + position);
+        }
+        if (n < 0) {
+            throw new IOException("file truncated below the end of the range");
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Seek points of a gzip file: the start of every member, where inflating can begin without earlier data. A bare
+ * deflate stream, such as a ZIP entry, has a single one at its start.
+ * <p>
+ * BGZF files (bgzip) record each member's size in its header and the uncompressed size in its trailer, so their
+ * index is read without inflating anything. Other files are inflated once, which also keeps the last
+ * {@code tailSize} bytes, so the AVB footer and a vbmeta image right before it are read without inflating again.
+ */
+final class GzipIndex {
+    final long compressedSize;
+    final long lastModified;
+    final long size;
+    private final long[] memberOffsets;
+    private final long[] memberPositions;
+    // length of the bare deflate stream at memberOffsets[0], or -1 for gzip
+    private final long deflateLength;
+    // uncompressed offset of tail
+    final long tailPosition;
+    final byte[] tail;
+
+    private GzipIndex(long compressedSize, long lastModified, long size, long[] memberOffsets, long[] memberPositions,
+                      long deflateLength, byte[] tail) {
+        this.compressedSize = compressedSize;
+        this.deflateLength = deflateLength;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.memberOffsets = memberOffsets;
+        this.memberPositions = memberPositions;
+        this.tailPosition = size - tail.length;
+        this.tail = tail;
+    }
+
+    static GzipIndex build(FileChannel file, long lastModified, int tailSize) throws IOException {
+        var header = GzipStream.readHeader(file, 0);
+        if (header == null) {
+            throw new IOException("not a gzip file");
+        }
+        if (header.blockSize() > 0) {
+            return buildBlocked(file, lastModified);
+        }
+        var offsets = new ArrayList<Long>();
+        var positions = new ArrayList<Long>();
+        try (var stream = new GzipStream(file, 0, 0, (offset, position) -> {
+            offsets.add(offset);
+            positions.add(position);
+        })) {
+            var tail = inflateTail(stream, tailSize);
+            return new GzipIndex(file.size(), lastModified, stream.position(), offsets.stream().mapToLong(x -> x).toArray(),
+                    positions.stream().mapToLong(x -> x).toArray(), -1, tail);
+        }
+    }
+
+    /**
+     * Indexes the {@code length} bytes of deflate data at {@code offset} of {@code file}.
+     */
+    static GzipIndex buildDeflate(FileChannel file, long offset, long length, long lastModified, int tailSize)
+            throws IOException {
+        try (var stream = GzipStream.deflate(file, offset, length)) {
+            var tail = inflateTail(stream, tailSize);
+            return new GzipIndex(file.size(), lastModified, stream.position(), new long[]{offset}, new long[]{0},
+                    length, tail);
+        }
+    }
+
+    // inflates all of stream and returns its last tailSize bytes
+    private static byte[] inflateTail(GzipStream stream, int tailSize) throws IOException {
+        var tail = new byte[tailSize];
+        var tailStart = 0;
+        var buffer = new byte[1048576];
+        int n;
+        while ((n = stream.read(buffer, 0, buffer.length)) >= 0) {
+            // tail is a ring buffer, tailStart is its oldest byte
+            var copy = Math.min(n, tail.length);
+            var from = n - copy;
+            while (copy > 0) {
+                var chunk = Math.min(copy, tail.length - tailStart);
+                System.arraycopy(buffer, from, tail, tailStart, chunk);
+                tailStart = (tailStart + chunk) % tail.length;
+                from += chunk;
+                copy -= chunk;
+            }
+        }
+        var ordered = new byte[(int) Math.min(stream.position(), tail.length)];
+        for (var i = 0; i < ordered.length; i++) {
+            ordered[i] = tail[(tailStart + tail.length - ordered.length + i) % tail.length];
+        }
+        return ordered;
+    }
+
+    private static GzipIndex buildBlocked(FileChannel file, long lastModified) throws IOException {
+        var fileSize = file.size();
+        var offsets = new long[1024];
+        var positions = new long[1024];
+        var count = 0;
+        var offset = 0L;
+        var position = 0L;
+        var trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (offset < fileSize) {
+            var header = GzipStream.readHeader(file, offset);
+            if (header == null) {
+                break;
+            }
+            if (header.blockSize() <= 0 || offset + header.blockSize() > fileSize) {
+                throw new IOException("invalid BGZF block at offset " + offset);
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            offsets[count] = offset;
+            positions[count] = position;
+            count++;
+            trailer.clear();
+            IOUtils.readFullyAt(file, trailer, offset + header.blockSize() - 4);
+            position += trailer.getInt(0) & 0xffffffffL;
+            offset += header.blockSize();
+        }
+        return new GzipIndex(fileSize, lastModified, position, Arrays.copyOf(offsets, count),
+                Arrays.copyOf(positions, count), -1, new byte[0]);
+    }
+
+    /**
+     * @return the index of the last member starting at or before {@code position}
+     */
+    int memberAt(long position) {
+        var i = Arrays.binarySearch(memberPositions, position);
+        if (i < 0) {
+            return -i - 2;
+        }
+        // members may be empty, e.g. the BGZF end-of-file marker
+        while (i + 1 < memberPositions.length && memberPositions[i + 1] == position) {
+            i++;
+        }
+        return i;
+    }
+
+    long memberPosition(int member) {
+        return memberPositions[member];
+    }
+
+    /**
+     * @return a stream inflating from the start of {@code member}
+     */
+    GzipStream openMember(FileChannel file, int member) throws IOException {
+        if (deflateLength >= 0) {
+            return GzipStream.deflate(file, memberOffsets[0], deflateLength);
+        }
+        return new GzipStream(file, memberOffsets[member], memberPositions[member], null);
+    }
+}
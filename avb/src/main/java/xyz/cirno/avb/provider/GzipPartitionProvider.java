@@ -0,0 +1,62 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import xyz.cirno.avb.PartitionProvider;
+import xyz.cirno.avb.util.BlockDevices;
+
+/**
+ * Provides partitions from gzip compressed images, e.g. {@code images/{}.img.gz}, without decompressing them to disk.
+ * <p>
+ * The index of each file is built on first open and kept until the file changes, so the several opens of one
+ * verification share it. Other formats such as xz, lz4 or zstd are not supported, the JDK has no decoder for them.
+ */
+public class GzipPartitionProvider implements PartitionProvider {
+    private final String pattern;
+    private final IndexCache<Path> indexes = new IndexCache<>();
+    // bytes at the end of each image kept in memory, for formats that cannot seek there cheaply
+    public int tailSize = GzipSeekableChannel.DEFAULT_TAIL_SIZE;
+
+    /**
+     * @param pattern path of the compressed images, with {@code {}} in place of the partition name
+     */
+    public GzipPartitionProvider(String pattern) {
+        this.pattern = pattern;
+    }
+
+    private Path pathOf(String name) {
+        return Path.of(pattern.replace("{}", name));
+    }
+
+    @Override
+    public SeekableByteChannel openPartition(String name) {
+        var path = pathOf(name);
+        try {
+            var file = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                return new GzipSeekableChannel(file, index(path, file));
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Object deviceOf(String name) {
+        return BlockDevices.deviceOf(pathOf(name));
+    }
+
+    private GzipIndex index(Path path, FileChannel file) throws IOException {
+        var lastModified = Files.getLastModifiedTime(path).toMillis();
+        return indexes.get(path, file.size(), lastModified, () -> GzipIndex.build(file, lastModified, tailSize));
+    }
+}
@@ -0,0 +1,241 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-only view of the uncompressed content of a gzip file, or of a deflated ZIP entry.
+ * <p>
+ * Reads are served by a thread that inflates ahead into a few chunks, so a sequential reader, e.g. a hash pass,
+ * hashes one chunk while the next is inflated. Seeking backwards, or beyond the next member, restarts inflating at
+ * the closest member before the new position, see {@link GzipIndex}.
+ */
+public final class GzipSeekableChannel implements SeekableByteChannel {
+    public static final int DEFAULT_TAIL_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int QUEUED_CHUNKS = 4;
+
+    private record Chunk(long position, byte[] data, int length, IOException error) {
+        long end() {
+            return position + length;
+        }
+    }
+
+    private final FileChannel file;
+    private final GzipIndex index;
+    private long position = 0;
+    private boolean open = true;
+    private Decoder decoder;
+    private Chunk chunk;
+
+    GzipSeekableChannel(FileChannel file, GzipIndex index) {
+        this.file = file;
+        this.index = index;
+    }
+
+    /**
+     * Opens {@code path}, building its index first, which inflates it once unless it is a BGZF file.
+     */
+    public static GzipSeekableChannel open(Path path) throws IOException {
+        var file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new GzipSeekableChannel(file, GzipIndex.build(file, Files.getLastModifiedTime(path).toMillis(),
+                    DEFAULT_TAIL_SIZE));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= index.size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        byte[] data;
+        int offset;
+        int available;
+        if (position >= index.tailPosition) {
+            data = index.tail;
+            offset = (int) (position - index.tailPosition);
+            available = index.tail.length - offset;
+        } else {
+            seekDecoder();
+            data = chunk.data;
+            offset = (int) (position - chunk.position);
+            available = chunk.length - offset;
+        }
+        var n = Math.min(available, dst.remaining());
+        dst.put(data, offset, n);
+        position += n;
+        return n;
+    }
+
+    // makes chunk cover position
+    private void seekDecoder() throws IOException {
+        if (chunk != null && position >= chunk.position && position < chunk.end()) {
+            return;
+        }
+        var member = index.memberAt(position);
+        // skipping within the current member is cheaper than restarting, a later member start is not
+        if (decoder == null || chunk == null || position < chunk.end() || index.memberAt(chunk.end()) < member) {
+            stopDecoder();
+            decoder = new Decoder(member, position);
+            var thread = new Thread(decoder, "gzip-inflate");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        do {
+            if (chunk != null) {
+                decoder.free.offer(chunk.data);
+            }
+            try {
+                chunk = decoder.chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (chunk.error != null) {
+                var error = chunk.error;
+                chunk = null;
+                stopDecoder();
+                throw new IOException(error.getMessage(), error);
+            }
+            if (chunk.length == 0) {
+                chunk = null;
+                stopDecoder();
+                throw new IOException("gzip data ended before its indexed size " + index.size);
+            }
+        } while (position >= chunk.end());
+    }
+
+    private void stopDecoder() {
+        if (decoder != null) {
+            decoder.stopped = true;
+            decoder.chunks.clear();
+            decoder = null;
+        }
+        chunk = null;
+    }
+
+    private final class Decoder implements Runnable {
+        final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(QUEUED_CHUNKS + 2);
+        volatile boolean stopped = false;
+        private final int member;
+        private final long target;
+
+        Decoder(int member, long target) {
+            this.member = member;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            try (var stream = index.openMember(file, member)) {
+                while (!stopped) {
+                    var data = free.poll();
+                    if (data == null) {
+                        data = new byte[CHUNK_SIZE];
+                    }
+                    var start = stream.position();
+                    var n = stream.readFully(data, 0, data.length);
+                    // chunks before the target are only inflated to get there, an empty chunk marks the end
+                    if (n == 0 || start + n > target) {
+                        put(new Chunk(start, data, n, null));
+                    } else {
+                        free.offer(data);
+                    }
+                    if (n == 0) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                put(new Chunk(0, null, 0, e));
+            } catch (RuntimeException e) {
+                put(new Chunk(0, null, 0, new IOException(e)));
+            }
+        }
+
+        private void put(Chunk c) {
+            try {
+                // the reader may have stopped this decoder and never take another chunk
+                var offered = false;
+                while (!stopped && !offered) {
+                    offered = chunks.offer(c, 100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return index.size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            stopDecoder();
+            file.close();
+        }
+    }
+}
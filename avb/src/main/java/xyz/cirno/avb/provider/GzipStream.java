@@ -0,0 +1,249 @@
+package xyz.cirno.avb.provider;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Inflates a gzip file sequentially from the start of one of its members, continuing across concatenated members.
+ * Also inflates a bare deflate stream, e.g. a ZIP entry.
+ */
+final class GzipStream implements Closeable {
+    private static final int INPUT_SIZE = 65536;
+    private static final int FLAG_HCRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    /**
+     * @param blockSize the total size of the member from a BGZF extra field, or -1
+     */
+    record Header(int length, int blockSize) {
+    }
+
+    interface MemberListener {
+        void memberStarted(long compressedOffset, long uncompressedOffset);
+    }
+
+    private final FileChannel file;
+    // end of the compressed data
+    private final long end;
+    // a bare deflate stream without gzip headers, ending with its first block marked final
+    private final boolean raw;
+    private final MemberListener listener;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] input = new byte[INPUT_SIZE];
+    // compressed offset of the next input byte that was not given to the inflater yet
+    private long inputOffset;
+    private long position;
+    private boolean eof = false;
+    private boolean dummyGiven = false;
+
+    /**
+     * @param memberOffset compressed offset of a member header
+     * @param position     uncompressed offset the member starts at
+     */
+    GzipStream(FileChannel file, long memberOffset, long position, MemberListener listener) throws IOException {
+        this.file = file;
+        this.end = file.size();
+        this.raw = false;
+        this.position = position;
+        this.listener = listener;
+        var header = readHeader(file, memberOffset);
+        if (header == null) {
+            throw new IOException("no gzip member at offset " + memberOffset);
+        }
+        startMember(memberOffset, header);
+    }
+
+    private GzipStream(FileChannel file, long offset, long length) {
+        this.file = file;
+        this.end = offset + length;
+        this.raw = true;
+        this.position = 0;
+        this.listener = null;
+        this.inputOffset = offset;
+    }
+
+    /**
+     * @return a stream inflating the {@code length} bytes of deflate data at {@code offset}
+     */
+    static GzipStream deflate(FileChannel file, long offset, long length) {
+        return new GzipStream(file, offset, length);
+    }
+
+    /**
+     * @return the uncompressed offset of the next byte {@link #read} returns
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * @return the number of bytes inflated into {@code b}, or -1 after the last member
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        while (!eof) {
+            if (inflater.needsInput()) {
+                fill();
+            }
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt gzip data before compressed offset " + inputOffset, e);
+            }
+            if (n > 0) {
+                position += n;
+                return n;
+            }
+            if (inflater.finished() && raw) {
+                eof = true;
+            } else if (inflater.finished()) {
+                nextMember();
+            } else if (inflater.needsDictionary()) {
+                throw new IOException("corrupt gzip data before compressed offset " + inputOffset);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fills {@code b} completely unless the end of the file is reached first.
+     */
+    int readFully(byte[] b, int off, int len) throws IOException {
+        var total = 0;
+        while (total < len) {
+            var n = read(b, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private void fill() throws IOException {
+        if (raw && inputOffset == end && !dummyGiven) {
+            // without the gzip trailer after it, the inflater may need one more byte to see the end of the data
+            dummyGiven = true;
+            inflater.setInput(new byte[1]);
+            return;
+        }
+        var buf = ByteBuffer.wrap(input, 0, (int) Math.min(input.length, end - inputOffset));
+        var n = buf.hasRemaining() ? file.read(buf, inputOffset) : -1;
+        if (n <= 0) {
+            throw new EOFException("deflate data truncated at compressed offset " + inputOffset);
+        }
+        inputOffset += n;
+        inflater.setInput(input, 0, n);
+    }
+
+    private void nextMember() throws IOException {
+        // skip the CRC32 and ISIZE trailer
+        var next = inputOffset - inflater.getRemaining() + 8;
+        if (next > end) {
+            throw new EOFException("gzip trailer truncated");
+        }
+        // like gzip, ignore trailing bytes that are not another member, e.g. zero padding
+        var header = next < end ? readHeader(file, next) : null;
+        if (header == null) {
+            eof = true;
+            return;
+        }
+        inflater.reset();
+        startMember(next, header);
+    }
+
+    private void startMember(long offset, Header header) {
+        if (listener != null) {
+            listener.memberStarted(offset, position);
+        }
+        inputOffset = offset + header.length;
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    /**
+     * @return the member header at {@code offset}, or null if there is no gzip magic
+     */
+    static Header readHeader(FileChannel file, long offset) throws IOException {
+        var available = file.size() - offset;
+        // file names and comments rarely need more than the first read
+        for (var size = 512; ; size = 65536) {
+            var buf = ByteBuffer.allocate((int) Math.min(size, available)).order(ByteOrder.LITTLE_ENDIAN);
+            IOUtils.readFullyAt(file, buf, offset);
+            buf.flip();
+            try {
+                return parseHeader(buf);
+            } catch (BufferUnderflowException e) {
+                if (size == 65536 || buf.limit() == available) {
+                    throw new EOFException("gzip header truncated or too long at offset " + offset);
+                }
+            }
+        }
+    }
+
+    private static Header parseHeader(ByteBuffer buf) {
+        if (buf.remaining() < 2 || buf.get() != (byte) 0x1f || buf.get() != (byte) 0x8b) {
+            return null;
+        }
+        var method = buf.get();
+        if (method != 8) {
+            return null;
+        }
+        var flags = buf.get();
+        // mtime, extra flags, OS
+        skip(buf, 6);
+        var blockSize = -1;
+        if ((flags & FLAG_EXTRA) != 0) {
+            var extraEnd = (buf.getShort() & 0xffff) + buf.position();
+            while (buf.position() + 4 <= extraEnd) {
+                var si1 = buf.get();
+                var si2 = buf.get();
+                var length = buf.getShort() & 0xffff;
+                if (si1 == 'B' && si2 == 'C' && length == 2) {
+                    blockSize = (buf.getShort() & 0xffff) + 1;
+                } else {
+                    skip(buf, length);
+                }
+            }
+            skip(buf, extraEnd - buf.position());
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            skipString(buf);
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            skipString(buf);
+        }
+        if ((flags & FLAG_HCRC) != 0) {
+            buf.getShort();
+        }
+        return new Header(buf.position(), blockSize);
+    }
+
+    private static void skip(ByteBuffer buf, int count) {
+        if (count < 0 || count > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buf.position(buf.position() + count);
+    }
+
+    private static void skipString(ByteBuffer buf) {
+        var b = buf.get();
+        while (b != 0) {
+            b = buf.get();
+        }
+    }
+}
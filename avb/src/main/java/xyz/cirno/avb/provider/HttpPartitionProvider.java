@@ -0,0 +1,291 @@
+package xyz.cirno.avb.provider;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.cirno.avb.PartitionProvider;
+
+/**
+ * Provides partitions from images on an HTTP server, e.g. {@code https://ci.example.com/builds/1234/{}.img}, reading
+ * only the ranges that are needed through HTTP Range requests.
+ * <p>
+ * Fetched data is kept in an LRU cache of {@link #blockSize} blocks shared by all partitions, so the footer and
+ * vbmeta image are fetched once per verification. Random reads fetch single blocks. Sequential reads, e.g. a hash
+ * pass, fetch {@link #readAheadBlocks} blocks per request with {@link #parallelRequests} requests ahead of the
+ * reader. Images are assumed not to change while the provider is in use.
+ * <p>
+ * Request threads exit after being idle for a while, {@link #close} stops them at once and drops the cache.
+ */
+public class HttpPartitionProvider implements PartitionProvider, Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private record BlockKey(String url, long block) {
+    }
+
+    private final String pattern;
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private Map<BlockKey, CompletableFuture<byte[]>> blocks;
+    private ThreadPoolExecutor executor;
+    // small enough that structure-only verification reads a few KiB per partition
+    public int blockSize = DEFAULT_BLOCK_SIZE;
+    // blocks per request when reading sequentially
+    public int readAheadBlocks = 256;
+    public int parallelRequests = 4;
+    public long cacheSize = 64L * 1024 * 1024;
+    public int timeoutMillis = 30000;
+
+    /**
+     * @param pattern URL of the images, with {@code {}} in place of the partition name
+     */
+    public HttpPartitionProvider(String pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * @return whether {@code pattern} is an http or https URL
+     */
+    public static boolean isHttpPattern(String pattern) {
+        var lower = pattern.toLowerCase(Locale.ROOT);
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    /**
+     * @return the number of image bytes fetched so far, excluding protocol overhead
+     */
+    public long bytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    private String urlOf(String name) {
+        return pattern.replace("{}", name);
+    }
+
+    @Override
+    public SeekableByteChannel openPartition(String name) {
+        var url = urlOf(name);
+        try {
+            return new HttpRangeChannel(this, url, size(url));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Object deviceOf(String name) {
+        // requests to one server share its bandwidth
+        var uri = URI.create(urlOf(name));
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    // presigned URLs are often only valid for GET, so the size comes from the Content-Range of a one byte GET
+    private long size(String url) throws IOException {
+        var size = sizes.get(url);
+        if (size == null) {
+            var conn = connect(url);
+            conn.setRequestProperty("Range", "bytes=0-0");
+            try {
+                // an empty image cannot satisfy the range
+                if (conn.getResponseCode() != HTTP_RANGE_NOT_SATISFIABLE) {
+                    checkResponse(conn, url, HttpURLConnection.HTTP_PARTIAL);
+                    try (var in = conn.getInputStream()) {
+                        bytesTransferred.addAndGet(in.readAllBytes().length);
+                    }
+                }
+                size = sizeOf(url, conn.getHeaderField("Content-Range"));
+            } catch (IOException e) {
+                conn.disconnect();
+                throw e;
+            }
+            sizes.put(url, size);
+        }
+        return size;
+    }
+
+    private static long sizeOf(String url, String contentRange) throws IOException {
+        // bytes 0-0/1234, or bytes */0 for an empty image
+        var slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        try {
+            if (slash >= 0) {
+                return Long.parseLong(contentRange.substring(slash + 1).trim());
+            }
+        } catch (NumberFormatException e) {
+            // unknown size, "*"
+        }
+        throw new IOException(url + ": no size in Content-Range " + contentRange);
+    }
+
+    /**
+     * Requests the blocks from {@code first} to {@code last} of {@code url} that are not cached or in flight yet,
+     * one request per run of consecutive missing blocks. Runs are split at multiples of {@code maxRun}, so a
+     * window moving ahead of a sequential reader requests whole runs.
+     */
+    void request(String url, long size, long first, long last, int maxRun) {
+        last = Math.min(last, (size - 1) / blockSize);
+        var runs = new ArrayList<Map.Entry<Long, ArrayList<CompletableFuture<byte[]>>>>();
+        Executor executor;
+        synchronized (this) {
+            executor = start();
+            ArrayList<CompletableFuture<byte[]>> run = null;
+            for (var block = first; block <= last; block++) {
+                var key = new BlockKey(url, block);
+                if (blocks.containsKey(key)) {
+                    run = null;
+                    continue;
+                }
+                if (run == null || block % maxRun == 0) {
+                    run = new ArrayList<>();
+                    runs.add(Map.entry(block, run));
+                }
+                var future = new CompletableFuture<byte[]>();
+                blocks.put(key, future);
+                run.add(future);
+            }
+        }
+        for (var run : runs) {
+            submit(executor, () -> fetch(url, size, run.getKey(), run.getValue()), run.getValue());
+        }
+    }
+
+    /**
+     * @return the cached block, requesting it alone if it was not requested yet
+     */
+    CompletableFuture<byte[]> block(String url, long size, long block) {
+        var key = new BlockKey(url, block);
+        CompletableFuture<byte[]> future;
+        Executor executor;
+        synchronized (this) {
+            executor = start();
+            future = blocks.get(key);
+            // blocks whose request failed are requested again
+            if (future != null && !future.isCompletedExceptionally()) {
+                return future;
+            }
+            future = new CompletableFuture<>();
+            blocks.put(key, future);
+        }
+        var run = List.of(future);
+        submit(executor, () -> fetch(url, size, block, run), run);
+        return future;
+    }
+
+    private static void submit(Executor executor, Runnable fetch, List<CompletableFuture<byte[]>> futures) {
+        try {
+            executor.execute(fetch);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile, readers must not wait for a request that never runs
+            var error = new IOException("provider closed");
+            for (var future : futures) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private Executor start() {
+        if (blocks == null) {
+            var maxBlocks = Math.max(1, cacheSize / blockSize);
+            blocks = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<BlockKey, CompletableFuture<byte[]>> eldest) {
+                    return size() > maxBlocks;
+                }
+            };
+            executor = new ThreadPoolExecutor(parallelRequests, parallelRequests, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                var thread = new Thread(r, "http-range");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // long-lived processes such as the daemon keep providers of past commands around
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the request threads and drops the cache. Using the provider again starts new ones.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            blocks = null;
+        }
+    }
+
+    private void fetch(String url, long size, long first, List<CompletableFuture<byte[]>> futures) {
+        var from = first * blockSize;
+        var to = Math.min(size, (first + futures.size()) * blockSize);
+        try {
+            var conn = connect(url);
+            conn.setRequestProperty("Range", "bytes=" + from + "-" + (to - 1));
+            byte[] data;
+            try {
+                checkResponse(conn, url, HttpURLConnection.HTTP_PARTIAL);
+                try (var in = conn.getInputStream()) {
+                    data = in.readNBytes((int) (to - from));
+                }
+            } catch (IOException e) {
+                conn.disconnect();
+                throw e;
+            }
+            if (data.length != to - from) {
+                throw new EOFException(url + " ended at " + (from + data.length) + ", expected " + to);
+            }
+            bytesTransferred.addAndGet(data.length);
+            for (var i = 0; i < futures.size(); i++) {
+                var start = i * blockSize;
+                futures.get(i).complete(Arrays.copyOfRange(data, start, Math.min(data.length, start + blockSize)));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var future : futures) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private HttpURLConnection connect(String url) throws IOException {
+        var conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        // ranges refer to the image itself, not to a compressed transfer of it
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        return conn;
+    }
+
+    private static void checkResponse(HttpURLConnection conn, String url, int expected) throws IOException {
+        var code = conn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new FileNotFoundException(url);
+        }
+        if (code == HttpURLConnection.HTTP_OK && expected == HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException(url + ": the server does not support Range requests");
+        }
+        if (code != expected) {
+            throw new IOException(url + ": HTTP " + code + " " + conn.getResponseMessage());
+        }
+    }
+}
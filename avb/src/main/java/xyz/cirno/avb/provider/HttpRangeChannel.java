@@ -0,0 +1,122 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A read-only view of an image on an HTTP server, reading through the block cache of its
+ * {@link HttpPartitionProvider}.
+ */
+final class HttpRangeChannel implements SeekableByteChannel {
+    private final HttpPartitionProvider provider;
+    private final String url;
+    private final long size;
+    private final int blockSize;
+    private long position = 0;
+    // end of the previous read, a read starting there continues a sequential scan
+    private long lastEnd = -1;
+    private boolean open = true;
+
+    HttpRangeChannel(HttpPartitionProvider provider, String url, long size) {
+        this.provider = provider;
+        this.url = url;
+        this.size = size;
+        this.blockSize = provider.blockSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        var first = position / blockSize;
+        var last = (Math.min(size, position + dst.remaining()) - 1) / blockSize;
+        if (position == lastEnd) {
+            // keep parallelRequests runs in flight beyond the one being read
+            var run = provider.readAheadBlocks;
+            var ahead = (first / run + provider.parallelRequests + 1) * run - 1;
+            provider.request(url, size, first, Math.max(last, ahead), run);
+        } else {
+            provider.request(url, size, first, last, Integer.MAX_VALUE);
+        }
+        var total = 0;
+        for (var block = first; block <= last; block++) {
+            byte[] data;
+            try {
+                data = provider.block(url, size, block).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? new IOException(io.getMessage(), io)
+                        : new IOException(e.getCause());
+            }
+            var offset = (int) (position - block * blockSize);
+            var n = Math.min(data.length - offset, dst.remaining());
+            dst.put(data, offset, n);
+            position += n;
+            total += n;
+        }
+        lastEnd = position;
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
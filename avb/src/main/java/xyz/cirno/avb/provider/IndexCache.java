@@ -0,0 +1,53 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes of compressed images, built on first open and kept until the file they were built from changes, so the
+ * several opens of one verification share them.
+ */
+final class IndexCache<K> {
+    interface Builder {
+        GzipIndex build() throws IOException;
+    }
+
+    private final Map<K, CompletableFuture<GzipIndex>> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * @param fileSize     current size of the file the index is built from
+     * @param lastModified current modification time of that file
+     */
+    GzipIndex get(K key, long fileSize, long lastModified, Builder builder) throws IOException {
+        while (true) {
+            var pending = new CompletableFuture<GzipIndex>();
+            var existing = indexes.putIfAbsent(key, pending);
+            if (existing == null) {
+                // built outside the map, so partitions opened concurrently build their indexes in parallel
+                try {
+                    pending.complete(builder.build());
+                } catch (IOException | RuntimeException e) {
+                    indexes.remove(key, pending);
+                    pending.completeExceptionally(e);
+                    throw e;
+                }
+                return pending.join();
+            }
+            GzipIndex index;
+            try {
+                index = existing.join();
+            } catch (CompletionException e) {
+                // a concurrent open failed, build again and report our own error
+                indexes.remove(key, existing);
+                continue;
+            }
+            if (index.compressedSize == fileSize && index.lastModified == lastModified) {
+                return index;
+            }
+            indexes.remove(key, existing);
+        }
+    }
+}
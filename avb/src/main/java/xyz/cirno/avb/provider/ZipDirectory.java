@@ -0,0 +1,164 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * The central directory of a ZIP archive, including ZIP64 archives, read without touching the entry data.
+ */
+final class ZipDirectory {
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int FLAG_ENCRYPTED = 1;
+
+    record Entry(String name, int method, int flags, long compressedSize, long size, long localHeaderOffset) {
+        /**
+         * @return the offset of the entry data, after its local header
+         */
+        long dataOffset(FileChannel file) throws IOException {
+            var buf = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            IOUtils.readFullyAt(file, buf, localHeaderOffset);
+            if (buf.getInt(0) != LOCAL_SIGNATURE) {
+                throw new IOException("no local header for " + name + " at offset " + localHeaderOffset);
+            }
+            // the local extra field may differ from the central one
+            var offset = localHeaderOffset + LOCAL_HEADER_SIZE + (buf.getShort(26) & 0xffff) + (buf.getShort(28) & 0xffff);
+            if (offset + compressedSize > file.size()) {
+                throw new IOException("data of " + name + " extends beyond the end of the archive");
+            }
+            return offset;
+        }
+    }
+
+    final long fileSize;
+    final long lastModified;
+    final Map<String, Entry> entries;
+
+    private ZipDirectory(long fileSize, long lastModified, Map<String, Entry> entries) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.entries = entries;
+    }
+
+    static ZipDirectory read(FileChannel file, long lastModified) throws IOException {
+        var fileSize = file.size();
+        // the end record is followed by a comment of up to 65535 bytes
+        var tailSize = (int) Math.min(fileSize, EOCD_SIZE + 65535);
+        var tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        IOUtils.readFullyAt(file, tail, fileSize - tailSize);
+        var eocd = -1;
+        for (var i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("not a ZIP archive");
+        }
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        var eocdOffset = fileSize - tailSize + eocd;
+        if (eocdOffset >= ZIP64_LOCATOR_SIZE) {
+            var locator = ByteBuffer.allocate(ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            IOUtils.readFullyAt(file, locator, eocdOffset - ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                var zip64 = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                IOUtils.readFullyAt(file, zip64, locator.getLong(8));
+                if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new IOException("invalid ZIP64 end of central directory");
+                }
+                count = zip64.getLong(32);
+                directorySize = zip64.getLong(40);
+                directoryOffset = zip64.getLong(48);
+            }
+        }
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > fileSize
+                || directorySize > Integer.MAX_VALUE) {
+            throw new IOException("invalid central directory at offset " + directoryOffset);
+        }
+        var directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+        IOUtils.readFullyAt(file, directory, directoryOffset);
+        directory.flip();
+        var entries = new LinkedHashMap<String, Entry>();
+        try {
+            for (long i = 0; i < count; i++) {
+                var entry = readEntry(directory);
+                // like unzip, a later entry of the same name wins
+                entries.put(entry.name(), entry);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("central directory truncated");
+        }
+        return new ZipDirectory(fileSize, lastModified, entries);
+    }
+
+    private static Entry readEntry(ByteBuffer buf) throws IOException {
+        var start = buf.position();
+        if (buf.getInt() != CENTRAL_SIGNATURE) {
+            throw new IOException("invalid central directory entry at directory offset " + start);
+        }
+        var flags = buf.getShort(start + 8) & 0xffff;
+        var method = buf.getShort(start + 10) & 0xffff;
+        long compressedSize = buf.getInt(start + 20) & 0xffffffffL;
+        long size = buf.getInt(start + 24) & 0xffffffffL;
+        var nameLength = buf.getShort(start + 28) & 0xffff;
+        var extraLength = buf.getShort(start + 30) & 0xffff;
+        var commentLength = buf.getShort(start + 32) & 0xffff;
+        long localHeaderOffset = buf.getInt(start + 42) & 0xffffffffL;
+        buf.position(start + 46);
+        var nameBytes = new byte[nameLength];
+        buf.get(nameBytes);
+        var extraEnd = buf.position() + extraLength;
+        while (buf.position() + 4 <= extraEnd) {
+            var id = buf.getShort() & 0xffff;
+            var length = buf.getShort() & 0xffff;
+            var next = buf.position() + length;
+            if (id == ZIP64_EXTRA) {
+                // only the fields that overflowed are present, in this order
+                if (size == 0xffffffffL) {
+                    size = buf.getLong();
+                }
+                if (compressedSize == 0xffffffffL) {
+                    compressedSize = buf.getLong();
+                }
+                if (localHeaderOffset == 0xffffffffL) {
+                    localHeaderOffset = buf.getLong();
+                }
+            }
+            if (next > buf.limit()) {
+                throw new BufferUnderflowException();
+            }
+            buf.position(next);
+        }
+        if (extraEnd + commentLength > buf.limit()) {
+            throw new BufferUnderflowException();
+        }
+        buf.position(extraEnd + commentLength);
+        // image names are ASCII, which reads the same in UTF-8 and the legacy code page
+        var name = new String(nameBytes, StandardCharsets.UTF_8);
+        return new Entry(name, method, flags, compressedSize, size, localHeaderOffset);
+    }
+
+    static boolean isEncrypted(Entry entry) {
+        return (entry.flags() & FLAG_ENCRYPTED) != 0;
+    }
+}
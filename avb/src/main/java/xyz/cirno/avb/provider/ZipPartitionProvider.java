@@ -0,0 +1,119 @@
+package xyz.cirno.avb.provider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import xyz.cirno.avb.PartitionProvider;
+import xyz.cirno.avb.util.BlockDevices;
+
+/**
+ * Provides partitions from entries of a ZIP archive, e.g. {@code target_files.zip!IMAGES/{}.img} or the
+ * {@code image-*.zip} of a factory image, without extracting them.
+ * <p>
+ * The central directory is read once and kept until the archive changes. Stored entries are read in place, deflated
+ * entries are inflated on the fly like {@link GzipPartitionProvider} does, with the same index cache.
+ */
+public class ZipPartitionProvider implements PartitionProvider {
+    public static final String SEPARATOR = "!";
+    private final Path archive;
+    private final String entryPattern;
+    private final IndexCache<String> indexes = new IndexCache<>();
+    private ZipDirectory directory;
+    // bytes at the end of each deflated entry kept in memory
+    public int tailSize = GzipSeekableChannel.DEFAULT_TAIL_SIZE;
+
+    /**
+     * @param entryPattern name of the image entries, with {@code {}} in place of the partition name
+     */
+    public ZipPartitionProvider(Path archive, String entryPattern) {
+        this.archive = archive;
+        this.entryPattern = entryPattern;
+    }
+
+    /**
+     * @return whether {@code pattern} names entries of a ZIP archive, {@code <archive>.zip!<entry pattern>}
+     */
+    public static boolean isZipPattern(String pattern) {
+        return pattern.toLowerCase(Locale.ROOT).contains(".zip" + SEPARATOR);
+    }
+
+    /**
+     * @param pattern {@code <archive>.zip!<entry pattern>}, e.g. {@code out/target_files.zip!IMAGES/{}.img}
+     */
+    public static ZipPartitionProvider ofPattern(String pattern) {
+        var split = pattern.toLowerCase(Locale.ROOT).indexOf(".zip" + SEPARATOR) + 4;
+        if (split < 4) {
+            throw new IllegalArgumentException("not a ZIP pattern: " + pattern);
+        }
+        var entryPattern = pattern.substring(split + SEPARATOR.length());
+        // entry names never start with a slash
+        while (entryPattern.startsWith("/")) {
+            entryPattern = entryPattern.substring(1);
+        }
+        return new ZipPartitionProvider(Path.of(pattern.substring(0, split)), entryPattern);
+    }
+
+    @Override
+    public SeekableByteChannel openPartition(String name) {
+        var entryName = entryPattern.replace("{}", name);
+        try {
+            var file = FileChannel.open(archive, StandardOpenOption.READ);
+            try {
+                return openEntry(file, entryName);
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private SeekableByteChannel openEntry(FileChannel file, String entryName) throws IOException {
+        var lastModified = Files.getLastModifiedTime(archive).toMillis();
+        var entry = directory(file, lastModified).entries.get(entryName);
+        if (entry == null) {
+            throw new NoSuchFileException(archive + SEPARATOR + entryName);
+        }
+        if (ZipDirectory.isEncrypted(entry)) {
+            throw new IOException(entryName + " is encrypted");
+        }
+        var offset = entry.dataOffset(file);
+        switch (entry.method()) {
+            case ZipDirectory.METHOD_STORED:
+                if (entry.compressedSize() != entry.size()) {
+                    throw new IOException("stored entry " + entryName + " has different compressed and uncompressed sizes");
+                }
+                return new FileRangeChannel(file, offset, entry.size());
+            case ZipDirectory.METHOD_DEFLATED:
+                var index = indexes.get(entryName, file.size(), lastModified,
+                        () -> GzipIndex.buildDeflate(file, offset, entry.compressedSize(), lastModified, tailSize));
+                if (index.size != entry.size()) {
+                    throw new IOException(entryName + " inflates to " + index.size + " bytes, the directory says " + entry.size());
+                }
+                return new GzipSeekableChannel(file, index);
+            default:
+                throw new IOException(entryName + " uses unsupported compression method " + entry.method());
+        }
+    }
+
+    private synchronized ZipDirectory directory(FileChannel file, long lastModified) throws IOException {
+        if (directory == null || directory.fileSize != file.size() || directory.lastModified != lastModified) {
+            directory = ZipDirectory.read(file, lastModified);
+        }
+        return directory;
+    }
+
+    @Override
+    public Object deviceOf(String name) {
+        // all entries share the disk of the archive
+        return BlockDevices.deviceOf(archive);
+    }
+}
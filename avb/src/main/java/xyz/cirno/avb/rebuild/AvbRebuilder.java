@@ -7,14 +7,22 @@ import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import xyz.cirno.avb.AvbKeyPair;
 import xyz.cirno.avb.AvbPublicKey;
+import xyz.cirno.avb.AvbSigner;
 import xyz.cirno.avb.ChainPartitionDescriptor;
 import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.KeyDirectory;
 import xyz.cirno.avb.ParsedVerifiedBootMetaImage;
 import xyz.cirno.avb.util.IOUtils;
 import xyz.cirno.avb.util.Logger;
@@ -24,26 +32,31 @@ import xyz.cirno.avb.verify.PartitionRecord;
 import xyz.cirno.avb.verify.VerificationIssue;
 
 public class AvbRebuilder {
-    private final Map<String, PartitionRecord> partitionRecords = new HashMap<>();
+    private final String rootPartition;
+    // shared with the verify result and never modified, patched images are copied into modifiedImages first
+    private final Map<String, PartitionRecord> partitionRecords;
+    private final Map<String, ParsedVerifiedBootMetaImage> modifiedImages = new HashMap<>();
     private final Set<AvbVerifier.PartitionReference> partitionReferences = new HashSet<>();
     private final List<VerificationIssue> issues = new ArrayList<>();
 
-    // re-sign if value is not null
-    private final Map<String, AvbKeyPair> dirtyVbmetaImages = new HashMap<>();
-
-    private final Map<AvbPublicKey, AvbKeyPair> availableKeys = new HashMap<>();
+    private final Map<AvbPublicKey, AvbSigner> availableKeys = new HashMap<>();
+    private final List<KeyDirectory> keyDirectories = new ArrayList<>();
     private final Map<Integer, AvbKeyPair> generatedKeys = new HashMap<>();
 
+    private RebuildPlan plan;
+
     public AvbRebuilder(AvbVerifyResult result) {
-        for (var entry : result.partitionRecords.entrySet()) {
-            var record = entry.getValue();
-            var dup = new PartitionRecord(record.name(), record.vbmetaImage().clone(), record.footer() != null ? record.footer().clone() : null);
-            this.partitionRecords.put(entry.getKey(), dup);
+        if (!result.isComplete()) {
+            // unverified partitions may hide mismatches the rebuild would then sign
+            throw new IllegalArgumentException("cannot rebuild from an incomplete verification result");
         }
-        this.partitionRecords.putAll(result.partitionRecords);
+        this.rootPartition = result.rootImageName;
+        this.partitionRecords = result.partitionRecords;
         this.partitionReferences.addAll(result.partitionReferences);
         for (var issue : result.issues) {
-            addIssue(issue);
+            if (!issues.contains(issue)) {
+                issues.add(issue);
+            }
         }
     }
 
@@ -51,105 +64,243 @@ public class AvbRebuilder {
         availableKeys.put(keyPair.publicKey, keyPair);
     }
 
-    private boolean addIssue(VerificationIssue issue) {
-        if (!issues.contains(issue)) {
-            issues.add(issue);
-            return true;
+    /**
+     * Signs vbmeta images whose key is {@code signer.publicKey()} with {@code signer}, e.g. a signing helper.
+     * Takes precedence over key directories.
+     */
+    public void addSigner(AvbSigner signer) {
+        availableKeys.put(signer.publicKey(), signer);
+    }
+
+    /**
+     * Makes the keys in {@code keyDirectory} available, each one is only loaded once it is needed for signing.
+     */
+    public void addKeyDirectory(KeyDirectory keyDirectory) {
+        keyDirectories.add(keyDirectory);
+    }
+
+    public List<VbmetaRebuildRequest> rebuildWithTrustedData() throws IOException {
+        var pending = startRebuild(Runnable::run);
+        var result = new ArrayList<VbmetaRebuildRequest>();
+        for (var entry : pending.entrySet()) {
+            try {
+                result.add(entry.getValue().join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw new RuntimeException("Failed to sign vbmeta of partition " + entry.getKey(), e.getCause());
+            }
         }
-        return false;
+        return result;
     }
 
-    private ParsedVerifiedBootMetaImage getVbmetaImage(String partitionName) throws IOException {
-        if (partitionRecords.containsKey(partitionName)) {
-            return partitionRecords.get(partitionName).vbmetaImage();
+    /**
+     * Applies the {@link #plan()}, then serializes and signs every changed vbmeta image on {@code executor}.
+     * Chain descriptors only hold public keys, so the images do not depend on each other and are all started at once.
+     *
+     * @return the pending rebuild of each changed vbmeta partition, in plan order
+     */
+    public Map<String, CompletableFuture<VbmetaRebuildRequest>> startRebuild(Executor executor) throws IOException {
+        var plan = plan();
+        applyPatches(plan);
+        var result = new LinkedHashMap<String, CompletableFuture<VbmetaRebuildRequest>>();
+        for (var change : plan.vbmetaChanges()) {
+            var name = change.partitionName();
+            var footer = partitionRecords.get(name).footer();
+            // the rebuild request updates the footer and serializing updates the header, both are copies
+            var header = modifiableImage(name);
+            var footerCopy = footer != null ? footer.clone() : null;
+            var signer = change.signer();
+            CompletableFuture<byte[]> vbmeta = signer == null
+                    ? CompletableFuture.supplyAsync(header::toUnsignedByteArray, executor)
+                    : CompletableFuture.supplyAsync(() -> header.toSignedByteArrayAsync(signer), executor).thenCompose(f -> f);
+            result.put(name, vbmeta.thenApply(bytes -> new VbmetaRebuildRequest(name, header, footerCopy, bytes)));
         }
-        throw new IllegalStateException("Vbmeta image for partition " + partitionName + " not verified");
+        return result;
     }
 
-    public List<VbmetaRebuildRequest> rebuildWithTrustedData() throws IOException {
-        int i = 0;
-        while (!issues.isEmpty()) {
-            var issue = issues.remove(0);
+    /**
+     * @return partitions referenced by descriptors of each vbmeta partition, excluding the partition itself
+     */
+    public Map<String, Set<String>> referencedPartitions() {
+        var result = new HashMap<String, Set<String>>();
+        for (var ref : partitionReferences) {
+            if (!ref.partitionName().equals(ref.referencedInVbmetaPartition())) {
+                result.computeIfAbsent(ref.referencedInVbmetaPartition(), k -> new HashSet<>()).add(ref.partitionName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Works out which descriptors to patch and which vbmeta images to re-sign, without changing anything yet.
+     * <p>
+     * Vbmeta partitions are visited once, children before the parents chaining to them, so a child that has to
+     * be signed with a new key adds its parent's chain descriptor patch before the parent is considered.
+     */
+    public RebuildPlan plan() {
+        if (plan != null) {
+            return plan;
+        }
+        var patches = new LinkedHashMap<List<Object>, RebuildPlan.DescriptorPatch>();
+        var changed = new HashSet<String>();
+        for (var issue : issues) {
             if (issue instanceof VerificationIssue.HashMismatch hm) {
-                fixHashMismatch(hm);
+                patches.put(List.of(hm.vbmetaPartition(), hm.descriptorIndex()),
+                        new RebuildPlan.HashPatch(hm.vbmetaPartition(), hm.descriptorIndex(), hm.actualSize(), hm.actualHash()));
+                changed.add(hm.vbmetaPartition());
             } else if (issue instanceof VerificationIssue.PublicKeyMismatch pkm) {
-                fixPublicKeyMismatch(pkm);
+                patches.put(List.of(pkm.vbmetaPartition(), pkm.descriptorIndex()),
+                        new RebuildPlan.ChainKeyPatch(pkm.vbmetaPartition(), pkm.descriptorIndex(), pkm.actualPublicKey()));
+                changed.add(pkm.vbmetaPartition());
             } else if (issue instanceof VerificationIssue.InvalidSignature is) {
-                fixInvalidSignature(is);
+                changed.add(is.vbmetaPartition());
+            } else if (issue instanceof VerificationIssue.HashTreeMismatch htm) {
+                Logger.warn("Hash tree of partition " + htm.partitionName() + " is corrupted, skipping");
             } else if (issue instanceof VerificationIssue.InvalidPartitionData ipd) {
                 throw new UnsupportedOperationException("cannot fix invalid data in partition " + ipd.partitionName());
             }
-            i++;
-            if (i > 1000) {
-                throw new IllegalStateException("too many fix iterations, possible infinite loop");
+        }
+
+        var order = childrenFirstOrder();
+        var position = new HashMap<String, Integer>();
+        for (var i = 0; i < order.size(); i++) {
+            position.put(order.get(i), i);
+        }
+        var changes = new HashMap<String, RebuildPlan.VbmetaChange>();
+        for (var name : order) {
+            if (!changed.contains(name)) {
+                continue;
+            }
+            var header = partitionRecords.get(name).vbmetaImage();
+            if (header.signature == null) {
+                changes.put(name, new RebuildPlan.VbmetaChange(name, RebuildPlan.Signing.UNSIGNED, null));
+                continue;
             }
+            var signer = tryGetSignerFor(header.publicKey);
+            if (signer != null) {
+                changes.put(name, new RebuildPlan.VbmetaChange(name, RebuildPlan.Signing.EXISTING_KEY, signer));
+                continue;
+            }
+            Logger.info("No private key found for partition " + name + ", trying to replace public key");
+            var refs = partitionReferences.stream()
+                    .filter(r -> !r.partitionName().equals(r.referencedInVbmetaPartition())
+                            && r.partitionName().equals(name))
+                    .toList();
+            if (refs.isEmpty()) {
+                Logger.error("No references found for partition " + name + ", unable to fix signature");
+                throw new IllegalStateException("unable to fix signature");
+            }
+            AvbKeyPair newKeyPair = null;
+            for (var ref : refs) {
+                var parent = ref.referencedInVbmetaPartition();
+                var desc = partitionRecords.get(parent).vbmetaImage().descriptors.get(ref.descriptorIndex());
+                if (!(desc instanceof ChainPartitionDescriptor cpd)) {
+                    Logger.error("Descriptor is not ChainPartitionDescriptor in partition " + parent);
+                    throw new IllegalStateException("unable to fix signature");
+                }
+                if (position.getOrDefault(parent, -1) <= position.get(name)) {
+                    throw new IllegalStateException("partition " + name + " is chained from " + parent + " which was already planned");
+                }
+                if (newKeyPair == null) {
+                    newKeyPair = getGeneratedKeyPair(cpd.publicKey.keySizeBits);
+                }
+                patches.put(List.of(parent, ref.descriptorIndex()),
+                        new RebuildPlan.ChainKeyPatch(parent, ref.descriptorIndex(), newKeyPair.publicKey));
+                changed.add(parent);
+            }
+            changes.put(name, new RebuildPlan.VbmetaChange(name, RebuildPlan.Signing.NEW_KEY, newKeyPair));
         }
-        var result = new ArrayList<VbmetaRebuildRequest>();
-        for (var vbmetaPartition : dirtyVbmetaImages.entrySet()) {
-            var name = vbmetaPartition.getKey();
-            var record = partitionRecords.get(name);
-            var signKey = vbmetaPartition.getValue();
-            result.add(new VbmetaRebuildRequest(name, record.vbmetaImage(), record.footer(), signKey));
+
+        var vbmetaChanges = new ArrayList<RebuildPlan.VbmetaChange>();
+        for (var i = order.size() - 1; i >= 0; i--) {
+            var change = changes.get(order.get(i));
+            if (change != null) {
+                vbmetaChanges.add(change);
+            }
         }
-        return result;
+        plan = new RebuildPlan(List.copyOf(patches.values()), List.copyOf(vbmetaChanges));
+        return plan;
     }
 
-    private void markVbmetaDirty(String vbmetaPartition, AvbKeyPair signKey) {
-        AvbKeyPair value = null;
-        var partitionRecord = partitionRecords.get(vbmetaPartition);
-        var header = partitionRecord.vbmetaImage();
-        if (header != null) {
-            if (header.signature != null) {
-                if (signKey == null) {
-                    if (addIssue(new VerificationIssue.InvalidSignature(vbmetaPartition))) {
-                        Logger.info("Invalidated signature for partition " + vbmetaPartition);
-                    }
-                } else {
-                    value = signKey;
-                }
+    /**
+     * @return every verified vbmeta partition, each after all partitions it references (post-order from the root)
+     */
+    private List<String> childrenFirstOrder() {
+        var children = new HashMap<String, List<AvbVerifier.PartitionReference>>();
+        for (var ref : partitionReferences) {
+            if (!ref.partitionName().equals(ref.referencedInVbmetaPartition())) {
+                children.computeIfAbsent(ref.referencedInVbmetaPartition(), k -> new ArrayList<>()).add(ref);
             }
         }
-        dirtyVbmetaImages.put(vbmetaPartition, value);
+        // visited last to first, so reversing the order lists siblings in descriptor order
+        for (var refs : children.values()) {
+            refs.sort((a, b) -> Integer.compare(b.descriptorIndex(), a.descriptorIndex()));
+        }
+        var order = new ArrayList<String>();
+        var visited = new HashSet<String>();
+        var roots = new LinkedHashSet<String>();
+        roots.add(rootPartition);
+        roots.addAll(new TreeSet<>(partitionRecords.keySet()));
+        for (var root : roots) {
+            if (partitionRecords.containsKey(root)) {
+                visitChildrenFirst(root, children, visited, order);
+            }
+        }
+        return order;
     }
 
-    private void fixInvalidSignature(VerificationIssue.InvalidSignature is) throws IOException {
-        var vbmetaPartition = is.vbmetaPartition();
-        var header = getVbmetaImage(vbmetaPartition);
-        var privKey = tryGetKeyPairFor(header.publicKey);
-        // have private key for current partition
-        if (privKey != null) {
-            Logger.info("Signing partition " + is.vbmetaPartition() + " with matching private key for " + header.publicKey);
-            markVbmetaDirty(vbmetaPartition, privKey);
+    private void visitChildrenFirst(String name, Map<String, List<AvbVerifier.PartitionReference>> children,
+                                    Set<String> visited, List<String> order) {
+        if (!visited.add(name)) {
             return;
         }
+        for (var ref : children.getOrDefault(name, List.of())) {
+            if (partitionRecords.containsKey(ref.partitionName())) {
+                visitChildrenFirst(ref.partitionName(), children, visited, order);
+            }
+        }
+        order.add(name);
+    }
 
-        Logger.info("No private key found for partition " + vbmetaPartition + ", trying to replace public key");
-
-        // try to replace key from references
-        var refs = partitionReferences.stream()
-                .filter(r -> !r.partitionName().equals(r.referencedInVbmetaPartition())
-                        && r.partitionName().equals(vbmetaPartition))
-                .toList();
-        if (refs.isEmpty()) {
-            Logger.error("No references found for partition " + vbmetaPartition + ", unable to fix signature");
-            throw new IllegalStateException("unable to fix signature");
+    private void applyPatches(RebuildPlan plan) {
+        for (var patch : plan.patches()) {
+            var header = modifiableImage(patch.vbmetaPartition());
+            var descriptor = header.descriptors.get(patch.descriptorIndex());
+            if (patch instanceof RebuildPlan.HashPatch hp) {
+                if (!(descriptor instanceof HashDescriptor)) {
+                    throw new IllegalArgumentException("Descriptor is not HashDescriptor");
+                }
+                var hd = (HashDescriptor) descriptor.clone();
+                header.descriptors.set(patch.descriptorIndex(), hd);
+                Logger.info("Setting %s.descriptors[%d].digest=%s", hp.vbmetaPartition(), hp.descriptorIndex(), IOUtils.bytesToHex(hp.digest()));
+                hd.digest = hp.digest();
+                hd.imageSize = hp.imageSize();
+            } else if (patch instanceof RebuildPlan.ChainKeyPatch ckp) {
+                if (!(descriptor instanceof ChainPartitionDescriptor)) {
+                    throw new IllegalArgumentException("Descriptor is not ChainPartitionDescriptor");
+                }
+                var cpd = (ChainPartitionDescriptor) descriptor.clone();
+                header.descriptors.set(patch.descriptorIndex(), cpd);
+                Logger.info("Setting %s.descriptors[%d].publicKey=%s", ckp.vbmetaPartition(), ckp.descriptorIndex(), ckp.publicKey());
+                cpd.publicKey = ckp.publicKey();
+            }
         }
-        for (var ref : refs) {
-            var header2 = getVbmetaImage(ref.referencedInVbmetaPartition());
-            var desc2 = header2.descriptors.get(ref.descriptorIndex());
-            if (!(desc2 instanceof ChainPartitionDescriptor cpd)) {
-                Logger.error("Descriptor is not ChainPartitionDescriptor in partition " + ref.referencedInVbmetaPartition());
-                throw new IllegalStateException("unable to fix signature");
+        for (var change : plan.vbmetaChanges()) {
+            var header = modifiableImage(change.partitionName());
+            if (change.signer() != null) {
+                Logger.info("Signing partition %s with %s key %s", change.partitionName(),
+                        change.signing() == RebuildPlan.Signing.NEW_KEY ? "new" : "matching", change.signer().publicKey());
+                header.publicKey = change.signer().publicKey();
             }
-            var newKeyPair = getGeneratedKeyPair(cpd.publicKey.keySizeBits);
-            header.publicKey = newKeyPair.publicKey;
-            markVbmetaDirty(vbmetaPartition, newKeyPair);
-            Logger.info("Using new key pair to sign partition %s (publicKey=%s)",
-                    vbmetaPartition, newKeyPair.publicKey);
-            addIssue(new VerificationIssue.PublicKeyMismatch(ref.referencedInVbmetaPartition(), ref.descriptorIndex(), newKeyPair.publicKey));
         }
     }
 
+    private ParsedVerifiedBootMetaImage modifiableImage(String name) {
+        return modifiedImages.computeIfAbsent(name, n -> partitionRecords.get(n).vbmetaImage().shallowCopy());
+    }
+
     private AvbKeyPair getGeneratedKeyPair(int keySize) {
         if (generatedKeys.containsKey(keySize)) {
             return generatedKeys.get(keySize);
@@ -166,42 +317,24 @@ public class AvbRebuilder {
         }
     }
 
-    private AvbKeyPair tryGetKeyPairFor(AvbPublicKey publicKey) {
+    private AvbSigner tryGetSignerFor(AvbPublicKey publicKey) {
         if (publicKey == null) {
             return null;
         }
         var result = availableKeys.get(publicKey);
         if (result == null) {
+            for (var dir : keyDirectories) {
+                var keyPair = dir.findKeyPair(publicKey);
+                if (keyPair != null) {
+                    availableKeys.put(publicKey, keyPair);
+                    return keyPair;
+                }
+            }
+
             result = generatedKeys.values().stream()
                     .filter(x -> x.publicKey.equals(publicKey))
                     .findFirst().orElse(null);
         }
         return result;
     }
-
-    private void fixPublicKeyMismatch(VerificationIssue.PublicKeyMismatch pkm) throws IOException {
-        var header = getVbmetaImage(pkm.vbmetaPartition());
-        var descriptor = header.descriptors.get(pkm.descriptorIndex());
-        if (!(descriptor instanceof ChainPartitionDescriptor cpd)) {
-            throw new IllegalArgumentException("Descriptor is not ChainPartitionDescriptor");
-        }
-        var newPublicKey = pkm.actualPublicKey();
-        Logger.info("Setting %s.descriptors[%d].publicKey=%s", pkm.vbmetaPartition(), pkm.descriptorIndex(), newPublicKey);
-        cpd.publicKey = newPublicKey;
-        markVbmetaDirty(pkm.vbmetaPartition(), null);
-    }
-
-    private void fixHashMismatch(VerificationIssue.HashMismatch hm) throws IOException {
-        var vbmetaPartition = hm.vbmetaPartition();
-        var descriptorIndex = hm.descriptorIndex();
-        var header = getVbmetaImage(vbmetaPartition);
-        var descriptor = header.descriptors.get(descriptorIndex);
-        if (!(descriptor instanceof HashDescriptor hd)) {
-            throw new IllegalArgumentException("Descriptor is not HashDescriptor");
-        }
-        Logger.info("Setting %s.descriptors[%d].digest=%s", hm.vbmetaPartition(), hm.descriptorIndex(), IOUtils.bytesToHex(hm.actualHash()));
-        hd.digest = hm.actualHash();
-        hd.imageSize = hm.actualSize();
-        markVbmetaDirty(vbmetaPartition, null);
-    }
 }
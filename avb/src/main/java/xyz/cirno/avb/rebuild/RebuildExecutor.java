@@ -0,0 +1,99 @@
+package xyz.cirno.avb.rebuild;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Serializes, signs and writes the output of an {@link AvbRebuilder} concurrently.
+ * <p>
+ * All images are signed at once. A partition is written as soon as its own image is ready and every rebuilt
+ * partition it chains to has been written, so a parent never points at a key its child does not carry yet,
+ * and children are written while their parents are still being signed.
+ */
+public final class RebuildExecutor {
+    public interface Writer {
+        void write(VbmetaRebuildRequest request) throws IOException;
+    }
+
+    /**
+     * @param written partitions that were written, in completion order
+     * @param failed  partitions that were not written, with the reason; includes parents of failed partitions
+     */
+    public record Result(List<String> written, Map<String, Throwable> failed) {
+        public boolean isEmpty() {
+            return written.isEmpty() && failed.isEmpty();
+        }
+    }
+
+    private final Executor executor;
+
+    public RebuildExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Result execute(AvbRebuilder rebuilder, Writer writer) throws IOException {
+        var pending = rebuilder.startRebuild(executor);
+        var children = rebuilder.referencedPartitions();
+        var writes = new LinkedHashMap<String, CompletableFuture<Void>>();
+        var written = new ArrayList<String>();
+        for (var name : pending.keySet()) {
+            scheduleWrite(name, pending, children, writes, new HashSet<>(), writer, written);
+        }
+        var failed = new LinkedHashMap<String, Throwable>();
+        for (var entry : writes.entrySet()) {
+            try {
+                entry.getValue().join();
+            } catch (CompletionException e) {
+                var cause = e.getCause() instanceof UncheckedIOException uio ? uio.getCause() : e.getCause();
+                failed.put(entry.getKey(), cause);
+            }
+        }
+        synchronized (written) {
+            return new Result(List.copyOf(written), failed);
+        }
+    }
+
+    private CompletableFuture<Void> scheduleWrite(String name, Map<String, CompletableFuture<VbmetaRebuildRequest>> pending,
+                                                  Map<String, Set<String>> children, Map<String, CompletableFuture<Void>> writes,
+                                                  Set<String> visiting, Writer writer, List<String> written) {
+        var scheduled = writes.get(name);
+        if (scheduled != null) {
+            return scheduled;
+        }
+        if (!visiting.add(name)) {
+            throw new IllegalStateException("partition " + name + " references itself through a chain");
+        }
+        var dependencies = new ArrayList<CompletableFuture<?>>();
+        dependencies.add(pending.get(name));
+        for (var child : children.getOrDefault(name, Set.of())) {
+            if (pending.containsKey(child)) {
+                dependencies.add(scheduleWrite(child, pending, children, writes, visiting, writer, written));
+            }
+        }
+        var request = pending.get(name);
+        var write = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> {
+                    try {
+                        writer.write(request.join());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    synchronized (written) {
+                        written.add(name);
+                    }
+                }, executor);
+        writes.put(name, write);
+        visiting.remove(name);
+        return write;
+    }
+}
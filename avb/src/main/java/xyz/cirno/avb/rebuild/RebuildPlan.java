@@ -0,0 +1,74 @@
+package xyz.cirno.avb.rebuild;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+import xyz.cirno.avb.AvbPublicKey;
+import xyz.cirno.avb.AvbSigner;
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * What {@link AvbRebuilder} is going to change, computed before any vbmeta image is touched.
+ *
+ * @param patches       descriptor updates, at most one per descriptor
+ * @param vbmetaChanges vbmeta images to rewrite, each exactly once, parents before the partitions they chain to
+ */
+public record RebuildPlan(List<DescriptorPatch> patches, List<VbmetaChange> vbmetaChanges) {
+    public interface DescriptorPatch {
+        String vbmetaPartition();
+
+        int descriptorIndex();
+    }
+
+    record HashPatch(String vbmetaPartition, int descriptorIndex, long imageSize,
+                     byte[] digest) implements DescriptorPatch {
+        @Override
+        public @NotNull String toString() {
+            return "HashPatch(" + vbmetaPartition + ".descriptors[" + descriptorIndex + "], imageSize=" + imageSize
+                    + ", digest=" + IOUtils.bytesToHex(digest) + ")";
+        }
+    }
+
+    record ChainKeyPatch(String vbmetaPartition, int descriptorIndex,
+                         AvbPublicKey publicKey) implements DescriptorPatch {
+        @Override
+        public @NotNull String toString() {
+            return "ChainKeyPatch(" + vbmetaPartition + ".descriptors[" + descriptorIndex + "], publicKey=" + publicKey + ")";
+        }
+    }
+
+    public enum Signing {
+        // the image was not signed and stays unsigned
+        UNSIGNED,
+        // re-signed with a key matching its current public key
+        EXISTING_KEY,
+        // signed with a generated key, its parents get a ChainKeyPatch
+        NEW_KEY,
+    }
+
+    public record VbmetaChange(String partitionName, Signing signing, @Nullable AvbSigner signer) {
+        @Override
+        public @NotNull String toString() {
+            return "VbmetaChange(" + partitionName + ", " + signing
+                    + (signer != null ? ", publicKey=" + signer.publicKey() : "") + ")";
+        }
+    }
+
+    public boolean isEmpty() {
+        return vbmetaChanges.isEmpty();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        var sb = new StringBuilder();
+        for (var patch : patches) {
+            sb.append(patch).append('\n');
+        }
+        for (var change : vbmetaChanges) {
+            sb.append(change).append('\n');
+        }
+        return sb.toString();
+    }
+}
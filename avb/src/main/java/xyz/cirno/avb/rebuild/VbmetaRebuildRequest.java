@@ -7,41 +7,39 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.util.Objects;
 
-import xyz.cirno.avb.AvbKeyPair;
 import xyz.cirno.avb.VerifiedBootFooter;
 import xyz.cirno.avb.VerifiedBootMetaImage;
 import xyz.cirno.avb.util.IOUtils;
 
+/**
+ * @param vbmeta the serialized and, if needed, signed {@code header}
+ */
 public record VbmetaRebuildRequest(String partitionName, VerifiedBootMetaImage header,
                                    @Nullable VerifiedBootFooter footer,
-                                   @Nullable AvbKeyPair signKey) {
+                                   byte[] vbmeta) {
+    /**
+     * Writes a rebuilt copy of {@code originalImage} to {@code newImage}.
+     * <p>
+     * The payload is copied with {@link IOUtils#copyRange}, and the gap between vbmeta and the footer is
+     * never written, so an empty {@code newImage} ends up sparse.
+     */
     public void rebuildCopy(SeekableByteChannel originalImage, SeekableByteChannel newImage) throws IOException {
         if (footer == null) {
             newImage.position(0);
-            var vbm = header.toByteArray(signKey);
-            IOUtils.writeFully(newImage, ByteBuffer.wrap(vbm));
+            IOUtils.writeFully(newImage, ByteBuffer.wrap(vbmeta));
         } else {
             Objects.requireNonNull(originalImage);
-            var buffer = ByteBuffer.allocate(262144);
-            // copy original image
-            var remaining = footer.originalImageSize;
-            originalImage.position(0);
-            newImage.position(0);
-            while (remaining > 0) {
-                var toRead = (int) Math.min(buffer.capacity(), remaining);
-                buffer.clear();
-                buffer.limit(toRead);
-                IOUtils.readFully(originalImage, buffer);
-                buffer.flip();
-                IOUtils.writeFully(newImage, buffer);
-                remaining -= toRead;
+            var imageSize = originalImage.size();
+            if (newImage.size() > imageSize) {
+                newImage.truncate(imageSize);
             }
+            // copy original image
+            IOUtils.copyRange(originalImage, 0, newImage, 0, footer.originalImageSize);
             footer.vbmetaOffset = newImage.position();
-            var vbm = header.toByteArray(signKey);
-            IOUtils.writeFully(newImage, ByteBuffer.wrap(vbm));
-            footer.vbmetaSize = vbm.length;
-            // write footer
-            newImage.position(originalImage.size() - VerifiedBootFooter.FOOTER_SIZE);
+            IOUtils.writeFully(newImage, ByteBuffer.wrap(vbmeta));
+            footer.vbmetaSize = vbmeta.length;
+            // write footer, leaving a hole in between
+            newImage.position(imageSize - VerifiedBootFooter.FOOTER_SIZE);
             var footerBytes = footer.toByteArray();
             IOUtils.writeFully(newImage, ByteBuffer.wrap(footerBytes));
         }
@@ -51,15 +49,13 @@ public record VbmetaRebuildRequest(String partitionName, VerifiedBootMetaImage h
         Objects.requireNonNull(image);
         if (footer == null) {
             image.position(0);
-            var vbm = header.toByteArray(signKey);
-            IOUtils.writeFully(image, ByteBuffer.wrap(vbm));
+            IOUtils.writeFully(image, ByteBuffer.wrap(vbmeta));
         } else {
             // copy original image
             footer.vbmetaOffset = footer.originalImageSize;
             image.position(footer.vbmetaOffset);
-            var vbm = header.toByteArray(signKey);
-            IOUtils.writeFully(image, ByteBuffer.wrap(vbm));
-            footer.vbmetaSize = vbm.length;
+            IOUtils.writeFully(image, ByteBuffer.wrap(vbmeta));
+            footer.vbmetaSize = vbmeta.length;
             // write footer
             image.position(image.size() - VerifiedBootFooter.FOOTER_SIZE);
             var footerBytes = footer.toByteArray();
@@ -0,0 +1,52 @@
+package xyz.cirno.avb.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public final class BlockDevices {
+    private BlockDevices() {
+    }
+
+    /**
+     * Identifies the physical device behind {@code path}, for {@link xyz.cirno.avb.PartitionProvider#deviceOf}.
+     * <p>
+     * Block device nodes such as {@code /dev/block/by-name/boot_a} are resolved through
+     * {@code /sys/dev/block/<major>:<minor>} to the whole disk, so all partitions of one UFS/eMMC device map to
+     * the same name. Regular files are identified by the device of the filesystem holding them.
+     *
+     * @return a string naming the device, or null if it cannot be determined
+     */
+    public static String deviceOf(Path path) {
+        try {
+            var real = path.toRealPath();
+            if (!Files.isRegularFile(real)) {
+                var rdev = ((Number) Files.getAttribute(real, "unix:rdev")).longValue();
+                if (rdev != 0) {
+                    return blockDeviceOf(rdev);
+                }
+            }
+            return "dev:" + Files.getAttribute(real, "unix:dev");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String blockDeviceOf(long rdev) {
+        // glibc encoding of dev_t, also used by bionic
+        var major = ((rdev >>> 32) & 0xfffff000L) | ((rdev >>> 8) & 0xfffL);
+        var minor = ((rdev >>> 12) & 0xffffff00L) | (rdev & 0xffL);
+        var id = major + ":" + minor;
+        try {
+            var sysfs = Paths.get("/sys/dev/block", id).toRealPath();
+            // partitions are subdirectories of their disk, e.g. /sys/devices/.../block/sda/sda5
+            if (Files.exists(sysfs.resolve("partition"))) {
+                sysfs = sysfs.getParent();
+            }
+            return "block:" + sysfs.getFileName();
+        } catch (IOException e) {
+            return "block:" + id;
+        }
+    }
+}
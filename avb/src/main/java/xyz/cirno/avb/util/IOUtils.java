@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -34,6 +35,56 @@ public class IOUtils {
         }
     }
 
+    /**
+     * Copies {@code count} bytes from {@code src} at {@code srcPos} to {@code dst} at {@code dstPos}.
+     * <p>
+     * Between {@link FileChannel}s this goes through {@link FileChannel#transferTo} so the kernel can copy
+     * without a userspace buffer (sendfile, copy_file_range or reflink, depending on runtime and filesystem).
+     * A transfer that stops making progress before the end of {@code src}, as into a non-blocking {@code dst},
+     * leaves the rest to a buffered copy. Both channels are left positioned after the copied range.
+     */
+    public static void copyRange(SeekableByteChannel src, long srcPos, SeekableByteChannel dst, long dstPos, long count)
+            throws IOException {
+        var done = 0L;
+        if (src instanceof FileChannel srcFile) {
+            dst.position(dstPos);
+            while (done < count) {
+                var n = srcFile.transferTo(srcPos + done, count - done, dst);
+                if (n <= 0) {
+                    if (srcPos + done >= srcFile.size()) {
+                        throw new IOException("Unexpected end of stream");
+                    }
+                    break;
+                }
+                done += n;
+            }
+        } else if (dst instanceof FileChannel dstFile) {
+            src.position(srcPos);
+            while (done < count) {
+                var n = dstFile.transferFrom(src, dstPos + done, count - done);
+                if (n <= 0) {
+                    break;
+                }
+                done += n;
+            }
+        }
+        src.position(srcPos + done);
+        dst.position(dstPos + done);
+        var remaining = count - done;
+        if (remaining == 0) {
+            return;
+        }
+        var buffer = ByteBuffer.allocate((int) Math.min(262144, remaining));
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            readFully(src, buffer);
+            buffer.flip();
+            remaining -= buffer.remaining();
+            writeFully(dst, buffer);
+        }
+    }
+
     public static byte[] readArray(ReadableByteChannel ch, int size) throws IOException {
         var buf = ByteBuffer.allocate(size);
         readFully(ch, buf);
@@ -54,6 +105,22 @@ public class IOUtils {
         return sb.toString();
     }
 
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Hex string must have an even number of characters.");
+        }
+        var data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            var hi = Character.digit(hex.charAt(i * 2), 16);
+            var lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex string");
+            }
+            data[i] = (byte) ((hi << 4) | lo);
+        }
+        return data;
+    }
+
     public static String sha256ToHex(byte[] data) {
         MessageDigest digest = null;
         try {
@@ -1,5 +1,10 @@
 package xyz.cirno.avb.util;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executor;
+
 public class Logger {
     public static int TRACE = 0;
     public static int DEBUG = 1;
@@ -8,6 +13,49 @@ public class Logger {
     public static int ERROR = 4;
     public static int FATAL = 5;
 
+    private static final ThreadLocal<PrintStream> threadOutput = new ThreadLocal<>();
+
+    /**
+     * Redirects log output of the calling thread, e.g. to a daemon client. Pass null to restore stdout.
+     */
+    public static void setThreadOutput(@Nullable PrintStream out) {
+        if (out == null) {
+            threadOutput.remove();
+        } else {
+            threadOutput.set(out);
+        }
+    }
+
+    /**
+     * @return the output set by {@link #setThreadOutput}, or null if the calling thread logs to stdout
+     */
+    public static @Nullable PrintStream getThreadOutput() {
+        return threadOutput.get();
+    }
+
+    /**
+     * @return an executor that runs tasks with the log output of the calling thread
+     */
+    public static Executor inheritOutput(Executor executor) {
+        var out = threadOutput.get();
+        if (out == null) {
+            return executor;
+        }
+        return task -> executor.execute(() -> {
+            threadOutput.set(out);
+            try {
+                task.run();
+            } finally {
+                threadOutput.remove();
+            }
+        });
+    }
+
+    private static PrintStream output() {
+        var out = threadOutput.get();
+        return out != null ? out : System.out;
+    }
+
     private static String levelToString(int level) {
         return switch (level) {
             case 0 -> "TRACE";
@@ -21,7 +69,7 @@ public class Logger {
     }
 
     public static void log(int level, String msg) {
-        System.out.println("[" + levelToString(level) + "] " + msg);
+        output().println("[" + levelToString(level) + "] " + msg);
     }
 
     public static void log(int level, String format, Object... args) {
@@ -0,0 +1,148 @@
+package xyz.cirno.avb.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * SHA-256 whose intermediate state can be saved and restored, which {@link java.security.MessageDigest} does not
+ * allow beyond {@code clone()}. Slower than the JDK implementation, use it only where the state has to persist.
+ */
+public final class Sha256 {
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2};
+    private static final int[] INITIAL = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+    // size of a serialized state: byte count, hash words and the partial block
+    public static final int STATE_SIZE = 8 + 32 + 64;
+
+    private final int[] h = INITIAL.clone();
+    private final int[] w = new int[64];
+    private final byte[] block = new byte[64];
+    private long count = 0;
+
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        var fill = (int) (count & 63);
+        count += length;
+        if (fill > 0) {
+            var n = Math.min(64 - fill, length);
+            System.arraycopy(data, offset, block, fill, n);
+            offset += n;
+            length -= n;
+            if (fill + n < 64) {
+                return;
+            }
+            compress(block, 0);
+        }
+        while (length >= 64) {
+            compress(data, offset);
+            offset += 64;
+            length -= 64;
+        }
+        System.arraycopy(data, offset, block, 0, length);
+    }
+
+    public void update(ByteBuffer data) {
+        if (data.hasArray()) {
+            update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        var tmp = new byte[Math.min(data.remaining(), 65536)];
+        while (data.hasRemaining()) {
+            var n = Math.min(tmp.length, data.remaining());
+            data.get(tmp, 0, n);
+            update(tmp, 0, n);
+        }
+    }
+
+    /**
+     * @return the digest; the instance is reset to the initial state
+     */
+    public byte[] digest() {
+        var bits = count * 8;
+        var padding = new byte[(int) (64 - ((count + 8) & 63)) + 8];
+        padding[0] = (byte) 0x80;
+        for (var i = 0; i < 8; i++) {
+            padding[padding.length - 1 - i] = (byte) (bits >>> (8 * i));
+        }
+        update(padding);
+        var out = ByteBuffer.allocate(32);
+        for (var v : h) {
+            out.putInt(v);
+        }
+        System.arraycopy(INITIAL, 0, h, 0, 8);
+        count = 0;
+        return out.array();
+    }
+
+    public byte[] saveState() {
+        var out = ByteBuffer.allocate(STATE_SIZE);
+        out.putLong(count);
+        for (var v : h) {
+            out.putInt(v);
+        }
+        out.put(block);
+        return out.array();
+    }
+
+    public void restoreState(byte[] state) {
+        if (state.length != STATE_SIZE) {
+            throw new IllegalArgumentException("invalid SHA-256 state");
+        }
+        var in = ByteBuffer.wrap(state);
+        count = in.getLong();
+        for (var i = 0; i < 8; i++) {
+            h[i] = in.getInt();
+        }
+        in.get(block);
+        Arrays.fill(block, (int) (count & 63), 64, (byte) 0);
+    }
+
+    private void compress(byte[] data, int offset) {
+        for (var i = 0; i < 16; i++) {
+            var p = offset + i * 4;
+            w[i] = (data[p] << 24) | ((data[p + 1] & 0xff) << 16) | ((data[p + 2] & 0xff) << 8) | (data[p + 3] & 0xff);
+        }
+        for (var i = 16; i < 64; i++) {
+            var s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            var s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (var i = 0; i < 64; i++) {
+            var s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            var ch = (e & f) ^ (~e & g);
+            var t1 = hh + s1 + ch + K[i] + w[i];
+            var s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            var maj = (a & b) ^ (a & c) ^ (b & c);
+            var t2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+}
@@ -1,18 +1,30 @@
 package xyz.cirno.avb.verify;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import xyz.cirno.avb.AndroidBootImage;
 import xyz.cirno.avb.AvbDescriptor;
+import xyz.cirno.avb.AvbParseLimits;
 import xyz.cirno.avb.AvbPartitionInfo;
 import xyz.cirno.avb.ChainPartitionDescriptor;
 import xyz.cirno.avb.HashDescriptor;
@@ -20,6 +32,7 @@ import xyz.cirno.avb.HashTreeDescriptor;
 import xyz.cirno.avb.ParsedVerifiedBootMetaImage;
 import xyz.cirno.avb.PartitionProvider;
 import xyz.cirno.avb.VerifiedBootMetaImage;
+import xyz.cirno.avb.util.IOUtils;
 import xyz.cirno.avb.util.Logger;
 
 public class AvbVerifier {
@@ -29,23 +42,173 @@ public class AvbVerifier {
     private Map<String, ParsedVerifiedBootMetaImage> cachedVbmetaImages = new HashMap<>();
     private Set<PartitionReference> partitionReferences = new HashSet<>();
     private Set<String> dirtyVbmetaImages = new HashSet<>();
+    private Map<String, HashTreeSampleResult> hashTreeSamples = new HashMap<>();
+    private Map<String, List<BootImageComponentDigest>> bootImageComponents = new HashMap<>();
+    private DigestCache digestCache = new DigestCache();
+    private VbmetaImageCache vbmetaImageCache = null;
+    private IoScheduler ioScheduler = null;
+    private HashCheckpoints hashCheckpoints = null;
+    private AvbParseLimits parseLimits = AvbParseLimits.DEFAULT;
+    // non-null while prefetchDigests walks the chain, collects the hashes it would compute
+    private Map<String, PendingHash> pendingHashes = null;
+    private int hashTreeSampleCount = 0;
+    private boolean structureOnly = false;
+    private long hashTreeSampleSeed = 0;
+    private SubmissionPublisher<VerificationEvent> events = null;
+    // keys of pending hashes whose PartitionHashed event was published while prefetching
+    private final Set<String> publishedHashes = new HashSet<>();
+    // set when the future of recursiveVerifyAsync is cancelled
+    private volatile boolean cancelled = false;
+    private CancellationToken cancellationToken = null;
 
     public AvbVerifier(PartitionProvider provider) {
         this.provider = provider;
     }
 
-    private static VerifyHashResult verifyHashDescriptorRaw(ReadableByteChannel ch, HashDescriptor desc, long actualSize) {
-        MessageDigest hasher;
-        try {
-            hasher = MessageDigest.getInstance(desc.hashAlgorithm);
-        } catch (Exception e) {
-            Logger.error("Unsupported hash algorithm: " + desc.hashAlgorithm);
-            return new VerifyHashResult(false, null);
+    public DigestCache getDigestCache() {
+        return digestCache;
+    }
+
+    /**
+     * Reuses partition content digests from another verifier instead of rehashing.
+     * Only share a cache between verifiers when the hashed regions have not been modified in between.
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Shares parsed vbmeta images with other verifiers using the same cache, see {@link VbmetaImageCache}.
+     */
+    public void setVbmetaImageCache(VbmetaImageCache vbmetaImageCache) {
+        this.vbmetaImageCache = vbmetaImageCache;
+    }
+
+    /**
+     * Hashes all partitions referenced by the chain concurrently through {@code ioScheduler} before verifying,
+     * instead of one after another while walking the chain.
+     */
+    public void setIoScheduler(IoScheduler ioScheduler) {
+        this.ioScheduler = ioScheduler;
+    }
+
+    /**
+     * Resumes SHA-256 partition hashing from the checkpoints in {@code hashCheckpoints} and updates them,
+     * see {@link HashCheckpoints} for the trade-off involved.
+     */
+    public void setHashCheckpoints(HashCheckpoints hashCheckpoints) {
+        this.hashCheckpoints = hashCheckpoints;
+    }
+
+    /**
+     * Limits applied when parsing vbmeta images, an image exceeding them fails verification with
+     * {@link xyz.cirno.avb.InvalidAvbDataException}. Defaults to {@link AvbParseLimits#DEFAULT}.
+     */
+    public void setParseLimits(AvbParseLimits parseLimits) {
+        this.parseLimits = parseLimits;
+    }
+
+    /**
+     * Enables spot-checking of {@link HashTreeDescriptor} partitions, which are skipped by default.
+     *
+     * @param samples number of randomly chosen data blocks to check per partition, 0 to disable
+     * @param seed    seed for block selection, runs with the same seed check the same blocks
+     */
+    public void setHashTreeSampling(int samples, long seed) {
+        this.hashTreeSampleCount = samples;
+        this.hashTreeSampleSeed = seed;
+    }
+
+    /**
+     * Checks signatures, chain keys, footers and descriptors without reading partition contents, so only the
+     * footers and vbmeta images are read. Hash descriptors are then treated as matching.
+     */
+    public void setStructureOnly(boolean structureOnly) {
+        this.structureOnly = structureOnly;
+    }
+
+    /**
+     * Publishes the progress of verifications started after this call, see {@link VerificationEvent}. The publisher
+     * completes when the verification finishes, later verifications publish to a new one returned by the next call.
+     * Events are delivered asynchronously, but a subscriber that does not keep up eventually blocks the verification.
+     */
+    public synchronized Flow.Publisher<VerificationEvent> events() {
+        if (events == null) {
+            events = new SubmissionPublisher<>();
+        }
+        return events;
+    }
+
+    private void publish(VerificationEvent event) {
+        if (events != null && pendingHashes == null) {
+            events.submit(event);
+        }
+    }
+
+    /**
+     * Stops verification when {@code token} is cancelled or its deadline passes. Partitions that were not hashed
+     * or parsed by then are reported as {@link VerificationIssue.NotVerified} and the result is not
+     * {@link AvbVerifyResult#isComplete() complete}; digests that are already known are still checked.
+     */
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    private boolean stopped() {
+        return cancelled || (cancellationToken != null && cancellationToken.isCancelled());
+    }
+
+    private void markNotVerified(String partitionName) {
+        Logger.warn("Stopped before partition " + partitionName + " was verified");
+        addIssue(new VerificationIssue.NotVerified(partitionName));
+    }
+
+    private static String pendingHashKey(HashDescriptor desc, long actualSize) {
+        return desc.partitionName + "/" + desc.hashAlgorithm + "/" + IOUtils.bytesToHex(desc.salt) + "/" + actualSize;
+    }
+
+    private VerifyHashResult verifyHashDescriptorRaw(HashDescriptor desc, long actualSize) throws IOException {
+        if (structureOnly) {
+            return new VerifyHashResult(true, true, null);
+        }
+        var digest = digestCache.get(desc.partitionName, desc.hashAlgorithm, desc.salt, actualSize);
+        if (digest == null && pendingHashes != null) {
+            pendingHashes.putIfAbsent(pendingHashKey(desc, actualSize), new PendingHash(desc, actualSize));
+            return new VerifyHashResult(true, true, null);
+        }
+        if (digest == null) {
+            if (stopped()) {
+                return new VerifyHashResult(false, false, null);
+            }
+            try (var part = provider.openPartition(desc.partitionName)) {
+                part.position(0);
+                digest = hashPartitionRaw(part, desc, actualSize);
+            }
+            if (digest == null) {
+                return new VerifyHashResult(!stopped(), false, null);
+            }
+            digestCache.put(desc.partitionName, desc.hashAlgorithm, desc.salt, actualSize, digest);
+        } else {
+            Logger.debug("Reusing cached digest of partition " + desc.partitionName);
+        }
+        var matches = MessageDigest.isEqual(digest, desc.digest);
+        if (!publishedHashes.contains(pendingHashKey(desc, actualSize))) {
+            publish(new VerificationEvent.PartitionHashed(desc.partitionName, actualSize, digest, matches));
+        }
+        return new VerifyHashResult(true, matches, digest);
+    }
+
+    private byte[] hashPartitionRaw(ReadableByteChannel ch, HashDescriptor desc, long actualSize) {
+        var hasher = ContentHasher.of(desc, hashCheckpoints);
+        if (hasher == null) {
+            return null;
         }
-        hasher.update(desc.salt);
         var buffer = ByteBuffer.allocateDirect(262144);
         long remaining = actualSize;
         while (remaining > 0) {
+            if (stopped()) {
+                return null;
+            }
             buffer.clear();
             int toRead = (int) Math.min(buffer.capacity(), remaining);
             buffer.limit(toRead);
@@ -53,20 +216,17 @@ public class AvbVerifier {
                 int read = ch.read(buffer);
                 if (read < 0) {
                     Logger.error("Unexpected end of channel");
-                    return new VerifyHashResult(false, null);
+                    return null;
                 }
                 remaining -= read;
                 buffer.flip();
                 hasher.update(buffer);
             } catch (IOException e) {
                 Logger.error("IOException while reading channel: " + e.getMessage());
-                return new VerifyHashResult(false, null);
+                return null;
             }
         }
-        var digest = hasher.digest();
-//        Logger.debug("partition %s size %d salt %s computed hash: %s", desc.partitionName, actualSize,
-//                IOUtils.bytesToHex(desc.salt), IOUtils.bytesToHex(digest));
-        return new VerifyHashResult(MessageDigest.isEqual(digest, desc.digest), digest);
+        return hasher.digest();
     }
 
     private void addIssue(VerificationIssue issue) {
@@ -76,6 +236,7 @@ public class AvbVerifier {
             }
         }
         issues.add(issue);
+        publish(new VerificationEvent.IssueFound(issue));
     }
 
     private AvbPartitionInfo getPartitionInfo(String partitionName) throws IOException {
@@ -99,7 +260,8 @@ public class AvbVerifier {
                 return null;
             }
             part.position(info.vbmetaOffset);
-            var vbmeta = VerifiedBootMetaImage.parseFrom(part);
+            var vbmeta = vbmetaImageCache != null ? vbmetaImageCache.parse(part, parseLimits)
+                    : VerifiedBootMetaImage.parseFrom(part, parseLimits);
             cachedVbmetaImages.put(partitionName, vbmeta);
             return vbmeta;
         }
@@ -113,6 +275,8 @@ public class AvbVerifier {
         }
         Logger.info("Verifying vbmeta image in partition " + vbmetaPartitionName);
         var header = getVbmetaImage(vbmetaPartitionName);
+        publish(new VerificationEvent.VbmetaParsed(vbmetaPartitionName, header.descriptors.size()));
+        publish(new VerificationEvent.SignatureChecked(vbmetaPartitionName, header.publicKey != null, header.signatureValid));
         if (header.publicKey != null && !header.signatureValid) {
             Logger.error("Invalid signature for partition " + vbmetaPartitionName);
             addIssue(new VerificationIssue.InvalidSignature(vbmetaPartitionName));
@@ -124,12 +288,123 @@ public class AvbVerifier {
         }
     }
 
+    /**
+     * Verifies the chain starting at {@code rootPartitionName} on {@code executor}. Cancelling the returned future
+     * stops the verification at the next descriptor or read chunk, e.g. once {@link #events()} reported the first
+     * mismatch. To get the partial result instead, use {@link #setCancellationToken}.
+     */
+    public CompletableFuture<AvbVerifyResult> recursiveVerifyAsync(String rootPartitionName, Executor executor) {
+        var result = new CompletableFuture<AvbVerifyResult>();
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                cancelled = true;
+            }
+        });
+        Logger.inheritOutput(executor).execute(() -> {
+            try {
+                result.complete(recursiveVerify(rootPartitionName));
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
     public AvbVerifyResult recursiveVerify(String rootPartitionName) throws IOException {
+        try {
+            var result = recursiveVerifyUnpublished(rootPartitionName);
+            var published = detachEvents();
+            if (published != null) {
+                published.close();
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            var published = detachEvents();
+            if (published != null) {
+                published.closeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    private synchronized SubmissionPublisher<VerificationEvent> detachEvents() {
+        var published = events;
+        events = null;
+        return published;
+    }
+
+    private AvbVerifyResult recursiveVerifyUnpublished(String rootPartitionName) throws IOException {
+        if (ioScheduler != null && !structureOnly) {
+            prefetchDigests(rootPartitionName);
+        }
         recursiveVerifyInternal(rootPartitionName);
         var records = cachedVbmetaImages.keySet().stream()
                 .map(name -> new PartitionRecord(name, cachedVbmetaImages.get(name), cachedPartitionInfo.get(name).footer))
                 .collect(Collectors.toMap(PartitionRecord::name, r -> r));
-        return new AvbVerifyResult(rootPartitionName, records, new ArrayList<>(issues), new HashSet<>(partitionReferences));
+        return new AvbVerifyResult(rootPartitionName, records, new ArrayList<>(issues), new HashSet<>(partitionReferences),
+                new HashMap<>(hashTreeSamples), new HashMap<>(bootImageComponents));
+    }
+
+    /**
+     * Walks the chain once without logging or hashing to find the digests it needs, then computes them all at
+     * once through the scheduler, so the verification pass that follows only hits the digest cache. Partitions
+     * that fail here are hashed again by that pass, which reports the error.
+     */
+    private void prefetchDigests(String rootPartitionName) throws IOException {
+        pendingHashes = new LinkedHashMap<>();
+        var output = Logger.getThreadOutput();
+        Logger.setThreadOutput(new PrintStream(OutputStream.nullOutputStream()));
+        Map<String, PendingHash> pending;
+        try {
+            recursiveVerifyInternal(rootPartitionName);
+        } finally {
+            Logger.setThreadOutput(output);
+            pending = pendingHashes;
+            pendingHashes = null;
+            issues.clear();
+            partitionReferences.clear();
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Logger.info("Hashing %d partitions concurrently", pending.size());
+        // handled in completion order, so the first finished partition is published without waiting for the others
+        var completed = new LinkedBlockingQueue<Map.Entry<String, CompletableFuture<byte[]>>>();
+        var futures = new ArrayList<CompletableFuture<byte[]>>();
+        for (var entry : pending.entrySet()) {
+            var future = ioScheduler.digest(provider, entry.getValue().desc, entry.getValue().size, hashCheckpoints);
+            futures.add(future);
+            future.whenComplete((digest, e) -> completed.add(Map.entry(entry.getKey(), future)));
+        }
+        try {
+            for (var i = 0; i < pending.size(); i++) {
+                Map.Entry<String, CompletableFuture<byte[]>> done = null;
+                while (done == null && !stopped()) {
+                    done = completed.poll(100, TimeUnit.MILLISECONDS);
+                }
+                if (done == null) {
+                    // the verification pass reports what was not hashed
+                    return;
+                }
+                var hash = pending.get(done.getKey());
+                try {
+                    var digest = done.getValue().join();
+                    if (digest != null) {
+                        digestCache.put(hash.desc.partitionName, hash.desc.hashAlgorithm, hash.desc.salt, hash.size, digest);
+                        publishedHashes.add(done.getKey());
+                        publish(new VerificationEvent.PartitionHashed(hash.desc.partitionName, hash.size, digest,
+                                MessageDigest.isEqual(digest, hash.desc.digest)));
+                    }
+                } catch (CompletionException e) {
+                    Logger.debug("Prefetching digest of partition %s failed: %s", hash.desc.partitionName, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        } finally {
+            futures.forEach(f -> f.cancel(false));
+        }
     }
 
     private void addReference(String partitionName, String fromVbmetaPartition, int descriptorIndex) {
@@ -145,13 +420,47 @@ public class AvbVerifier {
         } else if (descriptor instanceof ChainPartitionDescriptor cpd) {
             addReference(cpd.partitionName, fromVbmetaPartition, descriptorIndex);
             verifyChainPartitionDescriptor(fromVbmetaPartition, descriptorIndex, cpd);
-        } else if (descriptor instanceof HashTreeDescriptor htd) {
-            Logger.warn("Ignoring HashTreeDescriptor for partition " + htd.partitionName);
+        } else if (descriptor instanceof HashTreeDescriptor htd && pendingHashes == null) {
+            if (hashTreeSampleCount > 0) {
+                verifyHashTreeDescriptor(fromVbmetaPartition, descriptorIndex, htd);
+            } else {
+                Logger.warn("Ignoring HashTreeDescriptor for partition " + htd.partitionName);
+            }
+        }
+    }
+
+    private void verifyHashTreeDescriptor(String fromVbmetaPartition, int descriptorIndex, HashTreeDescriptor desc)
+            throws IOException {
+        if (stopped()) {
+            markNotVerified(desc.partitionName);
+            return;
+        }
+        Logger.info("Sampling hash tree of partition " + desc.partitionName);
+        HashTreeSampleResult result;
+        try (var part = provider.openPartition(desc.partitionName)) {
+            result = HashTreeSampler.sample(part, desc, hashTreeSampleCount, hashTreeSampleSeed);
+        }
+        hashTreeSamples.put(desc.partitionName, result);
+        if (result.error() != null) {
+            Logger.error("Hash tree of partition %s is invalid: %s", desc.partitionName, result.error());
+        } else if (!result.badBlocks().isEmpty()) {
+            Logger.error("Hash tree of partition %s: %d of %d sampled blocks mismatch", desc.partitionName,
+                    result.badBlocks().size(), result.sampledBlocks());
+        } else {
+            Logger.info("Hash tree of partition %s: %d of %d blocks sampled, 95%% confidence that less than %.4f%% are corrupted",
+                    desc.partitionName, result.sampledBlocks(), result.totalBlocks(), result.maxUndetectedFraction(0.95) * 100);
+        }
+        if (!result.isValid()) {
+            addIssue(new VerificationIssue.HashTreeMismatch(fromVbmetaPartition, descriptorIndex, desc.partitionName));
         }
     }
 
     private void verifyChainPartitionDescriptor(String fromVbmetaPartition, int descriptorIndex,
                                                 ChainPartitionDescriptor desc) throws IOException {
+        if (stopped()) {
+            markNotVerified(desc.partitionName);
+            return;
+        }
         Logger.info("Verifying chain partition " + desc.partitionName);
         var info = getPartitionInfo(desc.partitionName);
         if (info == null) {
@@ -219,35 +528,85 @@ public class AvbVerifier {
                 footer_mismatch = true;
                 Logger.error("Embedded descriptor image size does not match footer for partition " + desc.partitionName);
             }
-            try (var part = provider.openPartition(desc.partitionName)) {
-                part.position(0);
-                var footer_verify = verifyHashDescriptorRaw(part, embedded, actualSize);
-                if (!footer_verify.matches) {
-                    footer_mismatch = true;
-                    Logger.error("Hash mismatch for footer verification of partition " + desc.partitionName);
-                }
-
-                if (footer_mismatch) {
-                    addIssue(
-                            new VerificationIssue.HashMismatch(desc.partitionName, desc_index, actualSize, footer_verify.actualHash));
-                }
+            var footer_verify = verifyHashDescriptorRaw(embedded, actualSize);
+            if (!footer_verify.verified) {
+                markNotVerified(desc.partitionName);
+                return;
+            }
+            if (!footer_verify.matches) {
+                footer_mismatch = true;
+                Logger.error("Hash mismatch for footer verification of partition " + desc.partitionName);
+            }
 
+            if (footer_mismatch) {
+                addIssue(
+                        new VerificationIssue.HashMismatch(desc.partitionName, desc_index, actualSize, footer_verify.actualHash));
             }
         }
 
 
-        try (var part = provider.openPartition(desc.partitionName)) {
-            part.position(0);
-            var hash_verify = verifyHashDescriptorRaw(part, desc, actualSize);
-            if (!hash_verify.matches) {
-                parent_mismatch = true;
+        var hash_verify = verifyHashDescriptorRaw(desc, actualSize);
+        if (!hash_verify.verified) {
+            markNotVerified(desc.partitionName);
+            return;
+        }
+        if (!hash_verify.matches) {
+            parent_mismatch = true;
+        }
+        if (parent_mismatch) {
+            addIssue(new VerificationIssue.HashMismatch(fromVbmetaPartition, descriptorIndex, actualSize,
+                    hash_verify.actualHash));
+        }
+        if (pendingHashes == null && !stopped() && !structureOnly) {
+            if (!hash_verify.matches && hash_verify.actualHash != null) {
+                describeBootImage(desc, actualSize);
+            } else if (hashCheckpoints != null && !hashCheckpoints.hasComponentDigests(desc)) {
+                recordBootImage(desc, actualSize);
             }
-            if (parent_mismatch) {
-                addIssue(new VerificationIssue.HashMismatch(fromVbmetaPartition, descriptorIndex, actualSize,
-                        hash_verify.actualHash));
-                // skip hash verification on parent descriptor
+        }
+    }
+
+    /**
+     * Computes the component digests of a mismatching boot image and compares them with those recorded by
+     * {@link #recordBootImage} when the partition last matched {@code desc}.
+     */
+    private void describeBootImage(HashDescriptor desc, long actualSize) throws IOException {
+        if (bootImageComponents.containsKey(desc.partitionName)) {
+            return;
+        }
+        AndroidBootImage image;
+        Map<String, byte[]> digests;
+        try (var part = provider.openPartition(desc.partitionName)) {
+            image = AndroidBootImage.tryParse(part);
+            if (image == null) {
                 return;
             }
+            digests = image.componentDigests(part, actualSize);
+        }
+        var baseline = hashCheckpoints != null ? hashCheckpoints.loadComponentDigests(desc) : null;
+        var components = new ArrayList<BootImageComponentDigest>();
+        for (var component : image.components()) {
+            var digest = digests.get(component.name());
+            if (digest == null || component.size() == 0) {
+                continue;
+            }
+            var previous = baseline != null ? baseline.get(component.name()) : null;
+            var result = new BootImageComponentDigest(component.name(), component.offset(), component.size(), digest,
+                    previous == null ? null : !MessageDigest.isEqual(previous, digest));
+            Logger.info("Boot image %s component %s", desc.partitionName, result);
+            components.add(result);
+        }
+        bootImageComponents.put(desc.partitionName, components);
+    }
+
+    private void recordBootImage(HashDescriptor desc, long actualSize) throws IOException {
+        try (var part = provider.openPartition(desc.partitionName)) {
+            var image = AndroidBootImage.tryParse(part);
+            if (image != null) {
+                hashCheckpoints.saveComponentDigests(desc, image.componentDigests(part, actualSize));
+            }
+        } catch (IOException e) {
+            Logger.warn("Failed to record boot image components of partition %s: %s", desc.partitionName, e.getMessage());
         }
     }
 
@@ -256,6 +615,12 @@ public class AvbVerifier {
                                      int descriptorIndex) {
     }
 
-    private record VerifyHashResult(boolean matches, byte[] actualHash) {
+    /**
+     * @param verified false if verification stopped before the digest was known
+     */
+    private record VerifyHashResult(boolean verified, boolean matches, byte[] actualHash) {
+    }
+
+    private record PendingHash(HashDescriptor desc, long size) {
     }
 }
@@ -10,15 +10,27 @@ public final class AvbVerifyResult {
     public final Map<String, PartitionRecord> partitionRecords;
     public final List<VerificationIssue> issues;
     public final Set<AvbVerifier.PartitionReference> partitionReferences;
+    public final Map<String, HashTreeSampleResult> hashTreeSamples;
+    // per-component digests of boot image partitions with a HashMismatch, in layout order
+    public final Map<String, List<BootImageComponentDigest>> bootImageComponents;
 
-    /* internal */ AvbVerifyResult(String rootImageName, Map<String, PartitionRecord> partitionRecords, List<VerificationIssue> issues, Set<AvbVerifier.PartitionReference> references) {
+    /* internal */ AvbVerifyResult(String rootImageName, Map<String, PartitionRecord> partitionRecords, List<VerificationIssue> issues, Set<AvbVerifier.PartitionReference> references, Map<String, HashTreeSampleResult> hashTreeSamples, Map<String, List<BootImageComponentDigest>> bootImageComponents) {
         this.rootImageName = rootImageName;
         this.partitionRecords = Collections.unmodifiableMap(partitionRecords);
         this.issues = Collections.unmodifiableList(issues);
         this.partitionReferences = Collections.unmodifiableSet(references);
+        this.hashTreeSamples = Collections.unmodifiableMap(hashTreeSamples);
+        this.bootImageComponents = Collections.unmodifiableMap(bootImageComponents);
     }
 
     public boolean hasIssues() {
         return !issues.isEmpty();
     }
+
+    /**
+     * @return false if verification was stopped early and some partitions are {@link VerificationIssue.NotVerified}
+     */
+    public boolean isComplete() {
+        return issues.stream().noneMatch(i -> i instanceof VerificationIssue.NotVerified);
+    }
 }
@@ -0,0 +1,21 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * SHA-256 of one component of a boot image whose hash did not match, see {@link xyz.cirno.avb.AndroidBootImage}.
+ *
+ * @param changed whether the component differs from the last time the partition matched its descriptor,
+ *                null if that is unknown
+ */
+public record BootImageComponentDigest(String component, long offset, long size, byte[] digest,
+                                       @Nullable Boolean changed) {
+    @Override
+    public @NotNull String toString() {
+        var status = changed == null ? "" : changed ? " (changed)" : " (unchanged)";
+        return component + " offset=" + offset + " size=" + size + " sha256=" + IOUtils.bytesToHex(digest) + status;
+    }
+}
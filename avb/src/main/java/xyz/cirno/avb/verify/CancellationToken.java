@@ -0,0 +1,42 @@
+package xyz.cirno.avb.verify;
+
+import java.time.Duration;
+
+/**
+ * Stops a verification once {@link #cancel()} was called or its deadline passed, see
+ * {@link AvbVerifier#setCancellationToken}. It is checked between descriptors and read chunks, a single blocking
+ * read is not interrupted.
+ */
+public final class CancellationToken {
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled = false;
+
+    public CancellationToken() {
+        this.deadlineNanos = 0;
+        this.hasDeadline = false;
+    }
+
+    private CancellationToken(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = true;
+    }
+
+    /**
+     * @return a token that stops verification {@code timeout} from now, unless cancelled earlier
+     */
+    public static CancellationToken withTimeout(Duration timeout) {
+        return new CancellationToken(System.nanoTime() + timeout.toNanos());
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if cancelled or past the deadline
+     */
+    public boolean isCancelled() {
+        return cancelled || (hasDeadline && System.nanoTime() - deadlineNanos >= 0);
+    }
+}
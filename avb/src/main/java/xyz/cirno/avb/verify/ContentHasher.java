@@ -0,0 +1,50 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.util.Logger;
+
+/**
+ * Digest of a partition's hashed region, fed with its content in order starting at offset 0.
+ */
+interface ContentHasher {
+    void update(ByteBuffer data);
+
+    byte[] digest();
+
+    /**
+     * @return a hasher salted as described by {@code desc}, using {@code checkpoints} if they support its
+     * algorithm, or null if the algorithm is not supported at all
+     */
+    static @Nullable ContentHasher of(HashDescriptor desc, @Nullable HashCheckpoints checkpoints) {
+        if (checkpoints != null) {
+            var hasher = checkpoints.open(desc);
+            if (hasher != null) {
+                return hasher;
+            }
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(desc.hashAlgorithm);
+        } catch (Exception e) {
+            Logger.error("Unsupported hash algorithm: " + desc.hashAlgorithm);
+            return null;
+        }
+        md.update(desc.salt);
+        return new ContentHasher() {
+            @Override
+            public void update(ByteBuffer data) {
+                md.update(data);
+            }
+
+            @Override
+            public byte[] digest() {
+                return md.digest();
+            }
+        };
+    }
+}
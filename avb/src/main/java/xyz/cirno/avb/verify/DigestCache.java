@@ -0,0 +1,46 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Partition content digests computed by {@link AvbVerifier}, keyed by everything that determines them.
+ * <p>
+ * Sharing one cache between verifiers lets a later pass skip rehashing partitions whose payload is known
+ * to be unchanged, e.g. after {@link xyz.cirno.avb.rebuild.VbmetaRebuildRequest#rebuildInplace}, which only
+ * touches the vbmeta and footer regions.
+ */
+public final class DigestCache {
+    private final Map<Key, byte[]> digests = new ConcurrentHashMap<>();
+
+    @Nullable
+    public byte[] get(String partitionName, String hashAlgorithm, byte[] salt, long size) {
+        var digest = digests.get(new Key(partitionName, hashAlgorithm, IOUtils.bytesToHex(salt), size));
+        return digest == null ? null : digest.clone();
+    }
+
+    public void put(String partitionName, String hashAlgorithm, byte[] salt, long size, byte[] digest) {
+        digests.put(new Key(partitionName, hashAlgorithm, IOUtils.bytesToHex(salt), size), digest.clone());
+    }
+
+    public Set<String> partitionNames() {
+        var names = new HashSet<String>();
+        for (var key : digests.keySet()) {
+            names.add(key.partitionName);
+        }
+        return names;
+    }
+
+    public void invalidate(String partitionName) {
+        digests.keySet().removeIf(k -> k.partitionName.equals(partitionName));
+    }
+
+    private record Key(String partitionName, String hashAlgorithm, String salt, long size) {
+    }
+}
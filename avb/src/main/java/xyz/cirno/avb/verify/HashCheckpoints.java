@@ -0,0 +1,256 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.util.IOUtils;
+import xyz.cirno.avb.util.Logger;
+import xyz.cirno.avb.util.Sha256;
+import xyz.cirno.avb.util.XxHash64;
+
+/**
+ * Sidecar files that let a SHA-256 partition digest be recomputed from the first changed region onwards, and
+ * that remember the boot image component digests of content that matched its descriptor.
+ * <p>
+ * For every {@code interval} bytes of a hashed partition the sidecar stores an xxHash64 fingerprint of those bytes
+ * and the SHA-256 state after them. When the partition is hashed again, intervals whose fingerprint still matches
+ * are not fed to SHA-256; hashing resumes from the saved state at the first interval that changed. The content is
+ * still read in full, only the SHA-256 work is saved, which suits images patched near their end such as boot
+ * images after Magisk replaced the ramdisk.
+ * <p>
+ * xxHash64 is not collision resistant, so content crafted to keep the fingerprints of a checkpointed image would
+ * be accepted. Only enable checkpoints where that is acceptable, in a directory writable by trusted users only.
+ */
+public final class HashCheckpoints {
+    public static final int DEFAULT_INTERVAL = 1048576;
+    private static final int MAGIC = 0x41564243; // "AVBC"
+    private static final int VERSION = 1;
+
+    private final Path directory;
+    private final int interval;
+
+    public HashCheckpoints(Path directory) {
+        this(directory, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param interval bytes between checkpoints, a multiple of the 64 byte SHA-256 block size
+     */
+    public HashCheckpoints(Path directory, int interval) {
+        if (interval <= 0 || interval % 64 != 0) {
+            throw new IllegalArgumentException("interval must be a positive multiple of 64");
+        }
+        this.directory = directory;
+        this.interval = interval;
+    }
+
+    /**
+     * @return a hasher using and updating the sidecar of {@code desc.partitionName}, or null if the hash
+     * algorithm of {@code desc} is not supported
+     */
+    @Nullable
+    ContentHasher open(HashDescriptor desc) {
+        if (!"sha256".equals(desc.hashAlgorithm)) {
+            return null;
+        }
+        return new Session(desc);
+    }
+
+    private Path sidecarOf(HashDescriptor desc) {
+        return directory.resolve(desc.partitionName + "-" + IOUtils.sha256ToHex(desc.salt).substring(0, 16) + ".ckpt");
+    }
+
+    private List<Checkpoint> load(HashDescriptor desc) {
+        var path = sidecarOf(desc);
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != interval) {
+                return List.of();
+            }
+            var salt = new byte[in.readInt()];
+            in.readFully(salt);
+            if (!Arrays.equals(salt, desc.salt)) {
+                return List.of();
+            }
+            var count = in.readInt();
+            var result = new ArrayList<Checkpoint>();
+            for (var i = 0; i < count; i++) {
+                var fingerprint = in.readLong();
+                var state = new byte[Sha256.STATE_SIZE];
+                in.readFully(state);
+                result.add(new Checkpoint(fingerprint, state));
+            }
+            return result;
+        } catch (NoSuchFileException e) {
+            return List.of();
+        } catch (IOException e) {
+            Logger.warn("Ignoring unreadable hash checkpoints %s: %s", path, e.getMessage());
+            return List.of();
+        }
+    }
+
+    private void save(HashDescriptor desc, List<Checkpoint> checkpoints) throws IOException {
+        Files.createDirectories(directory);
+        var path = sidecarOf(desc);
+        var tmp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(interval);
+                out.writeInt(desc.salt.length);
+                out.write(desc.salt);
+                out.writeInt(checkpoints.size());
+                for (var checkpoint : checkpoints) {
+                    out.writeLong(checkpoint.fingerprint);
+                    out.write(checkpoint.state);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path componentsOf(HashDescriptor desc) {
+        return directory.resolve(desc.partitionName + "-" + IOUtils.bytesToHex(desc.digest).substring(0, 16) + ".components");
+    }
+
+    /**
+     * @return boot image component digests recorded by {@link #saveComponentDigests} for content matching
+     * {@code desc}, or null if none were recorded
+     */
+    @Nullable
+    Map<String, byte[]> loadComponentDigests(HashDescriptor desc) {
+        var path = componentsOf(desc);
+        try {
+            var result = new LinkedHashMap<String, byte[]>();
+            for (var line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                var fields = line.split(" ");
+                if (fields.length == 2) {
+                    result.put(fields[0], IOUtils.hexToBytes(fields[1]));
+                }
+            }
+            return result;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.warn("Ignoring unreadable component digests %s: %s", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Records the boot image component digests of content matching {@code desc}, to tell later which components
+     * of a mismatching image changed.
+     */
+    void saveComponentDigests(HashDescriptor desc, Map<String, byte[]> digests) throws IOException {
+        Files.createDirectories(directory);
+        var sb = new StringBuilder();
+        for (var entry : digests.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(IOUtils.bytesToHex(entry.getValue())).append('\n');
+        }
+        var path = componentsOf(desc);
+        var tmp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    boolean hasComponentDigests(HashDescriptor desc) {
+        return Files.exists(componentsOf(desc));
+    }
+
+    /**
+     * @param state SHA-256 state after the interval
+     */
+    private record Checkpoint(long fingerprint, byte[] state) {
+    }
+
+    private final class Session implements ContentHasher {
+        private final HashDescriptor desc;
+        private final List<Checkpoint> previous;
+        private final List<Checkpoint> current = new ArrayList<>();
+        private final Sha256 sha = new Sha256();
+        private final byte[] buffer = new byte[interval];
+        private int fill = 0;
+        // state of the last matching checkpoint, null after the first changed interval
+        private byte[] matchedState;
+
+        Session(HashDescriptor desc) {
+            this.desc = desc;
+            this.previous = load(desc);
+            sha.update(desc.salt);
+            matchedState = sha.saveState();
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                var n = Math.min(data.remaining(), interval - fill);
+                data.get(buffer, fill, n);
+                fill += n;
+                if (fill == interval) {
+                    completeInterval();
+                }
+            }
+        }
+
+        private void completeInterval() {
+            var fingerprint = XxHash64.hash(buffer, 0, interval, 0);
+            var index = current.size();
+            if (matchedState != null && index < previous.size() && previous.get(index).fingerprint == fingerprint) {
+                matchedState = previous.get(index).state;
+                current.add(previous.get(index));
+            } else {
+                if (matchedState != null) {
+                    sha.restoreState(matchedState);
+                    matchedState = null;
+                }
+                sha.update(buffer, 0, interval);
+                current.add(new Checkpoint(fingerprint, sha.saveState()));
+            }
+            fill = 0;
+        }
+
+        @Override
+        public byte[] digest() {
+            var reused = 0;
+            while (reused < current.size() && reused < previous.size() && current.get(reused) == previous.get(reused)) {
+                reused++;
+            }
+            if (matchedState != null) {
+                sha.restoreState(matchedState);
+            }
+            sha.update(buffer, 0, fill);
+            Logger.debug("Reused %d of %d hash checkpoints of partition %s", reused, current.size(), desc.partitionName);
+            if (reused < current.size()) {
+                try {
+                    save(desc, current);
+                } catch (IOException e) {
+                    Logger.warn("Failed to save hash checkpoints of partition %s: %s", desc.partitionName, e.getMessage());
+                }
+            }
+            return sha.digest();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Outcome of {@link HashTreeSampler#sample}.
+ *
+ * @param upperLevelsValid whether the tree above the leaf level matches the root digest
+ * @param badBlocks        indexes of sampled data blocks that do not match their leaf hash
+ * @param error            reason the tree could not be checked, null if it was sampled
+ */
+public record HashTreeSampleResult(String partitionName, long totalBlocks, long sampledBlocks,
+                                   boolean upperLevelsValid, List<Long> badBlocks,
+                                   @Nullable String error) {
+    static HashTreeSampleResult invalid(String partitionName, String error) {
+        return new HashTreeSampleResult(partitionName, 0, 0, false, List.of(), error);
+    }
+
+    public boolean isValid() {
+        return upperLevelsValid && badBlocks.isEmpty();
+    }
+
+    /**
+     * @return probability that sampling would have hit at least one bad block
+     * if {@code corruptFraction} of all data blocks were corrupted
+     */
+    public double confidence(double corruptFraction) {
+        if (error != null) {
+            return 0.0;
+        }
+        if (sampledBlocks >= totalBlocks) {
+            return 1.0;
+        }
+        return 1.0 - Math.pow(1.0 - corruptFraction, sampledBlocks);
+    }
+
+    /**
+     * @return the largest fraction of corrupted data blocks that could still go unnoticed
+     * with the given confidence, e.g. 0.003 means "fewer than 0.3% of blocks are bad"
+     */
+    public double maxUndetectedFraction(double confidence) {
+        if (error != null) {
+            return 1.0;
+        }
+        if (sampledBlocks >= totalBlocks) {
+            return 0.0;
+        }
+        if (sampledBlocks == 0) {
+            return 1.0;
+        }
+        return 1.0 - Math.pow(1.0 - confidence, 1.0 / sampledBlocks);
+    }
+}
@@ -0,0 +1,196 @@
+package xyz.cirno.avb.verify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import xyz.cirno.avb.HashTreeDescriptor;
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Spot-checks a dm-verity hash tree instead of rehashing the whole partition.
+ * <p>
+ * All levels above the leaf level are verified against {@link HashTreeDescriptor#rootDigest},
+ * then a seeded random sample of data blocks is checked against the leaf hashes, so the cost
+ * grows with the sample count rather than the partition size.
+ * The tree layout follows avbtool's {@code calc_hash_level_offsets}: the top level is stored first.
+ */
+public final class HashTreeSampler {
+    private final SeekableByteChannel ch;
+    private final HashTreeDescriptor desc;
+    private final MessageDigest hasher;
+    private final int digestSize;
+    private final int entrySize;
+    private final long dataBlockCount;
+    // levelOffsets[0] is the leaf level, relative to desc.treeOffset
+    private final long[] levelOffsets;
+    private final long[] levelSizes;
+    private final ByteBuffer dataBlock;
+    private final ByteBuffer hashBlock;
+    private final ByteBuffer entryBlock;
+    private final Set<Long> verifiedLeafBlocks = new HashSet<>();
+    private final Set<Long> badLeafBlocks = new HashSet<>();
+
+    private HashTreeSampler(SeekableByteChannel ch, HashTreeDescriptor desc) throws NoSuchAlgorithmException {
+        this.ch = ch;
+        this.desc = desc;
+        this.hasher = MessageDigest.getInstance(desc.hashAlgorithm);
+        this.digestSize = hasher.getDigestLength();
+        this.entrySize = Integer.highestOneBit(digestSize - 1) << 1;
+        this.dataBlockCount = ceilDiv(desc.imageSize, desc.dataBlockSize);
+
+        var sizes = new ArrayList<Long>();
+        long srcSize = desc.imageSize;
+        long srcBlockSize = desc.dataBlockSize;
+        while (srcSize > srcBlockSize) {
+            var levelSize = IOUtils.alignTo(ceilDiv(srcSize, srcBlockSize) * entrySize, desc.hashBlockSize);
+            sizes.add(levelSize);
+            srcSize = levelSize;
+            srcBlockSize = desc.hashBlockSize;
+        }
+        levelSizes = sizes.stream().mapToLong(x -> x).toArray();
+        levelOffsets = new long[levelSizes.length];
+        for (int n = levelSizes.length - 2; n >= 0; n--) {
+            levelOffsets[n] = levelOffsets[n + 1] + levelSizes[n + 1];
+        }
+        dataBlock = ByteBuffer.allocate(desc.dataBlockSize);
+        hashBlock = ByteBuffer.allocate(desc.hashBlockSize);
+        entryBlock = ByteBuffer.allocate(desc.hashBlockSize);
+    }
+
+    /**
+     * @param ch      the partition containing both data and hash tree
+     * @param samples number of data blocks to check, the whole partition is checked if this exceeds the block count
+     * @param seed    seed for block selection, the same seed always checks the same blocks
+     */
+    public static HashTreeSampleResult sample(SeekableByteChannel ch, HashTreeDescriptor desc, int samples, long seed)
+            throws IOException {
+        if (desc.dataBlockSize <= 0 || desc.hashBlockSize <= 0) {
+            return HashTreeSampleResult.invalid(desc.partitionName, "invalid block size");
+        }
+        HashTreeSampler sampler;
+        try {
+            sampler = new HashTreeSampler(ch, desc);
+        } catch (NoSuchAlgorithmException e) {
+            return HashTreeSampleResult.invalid(desc.partitionName, "unsupported hash algorithm " + desc.hashAlgorithm);
+        }
+        return sampler.run(samples, seed);
+    }
+
+    private HashTreeSampleResult run(int samples, long seed) throws IOException {
+        var treeSize = levelSizes.length == 0 ? 0 : levelOffsets[0] + levelSizes[0];
+        if (treeSize > desc.treeSize) {
+            return HashTreeSampleResult.invalid(desc.partitionName,
+                    "hash tree needs " + treeSize + " bytes but descriptor has " + desc.treeSize);
+        }
+        if (!verifyUpperLevels()) {
+            return HashTreeSampleResult.invalid(desc.partitionName, "upper levels do not match root digest");
+        }
+
+        var checked = new HashSet<Long>();
+        var badBlocks = new ArrayList<Long>();
+        if (samples >= dataBlockCount) {
+            for (long i = 0; i < dataBlockCount; i++) {
+                checkDataBlock(i, checked, badBlocks);
+            }
+        } else {
+            var random = new Random(seed);
+            for (int i = 0; i < samples; i++) {
+                checkDataBlock(Math.floorMod(random.nextLong(), dataBlockCount), checked, badBlocks);
+            }
+        }
+        return new HashTreeSampleResult(desc.partitionName, dataBlockCount, checked.size(), true, badBlocks, null);
+    }
+
+    private void checkDataBlock(long index, Set<Long> checked, List<Long> badBlocks) throws IOException {
+        if (!checked.add(index)) {
+            return;
+        }
+        readBlock(dataBlock, index * desc.dataBlockSize, desc.imageSize);
+        var actual = hash(dataBlock);
+        if (levelSizes.length == 0) {
+            // single block image, the data block hashes directly to the root
+            if (!MessageDigest.isEqual(actual, desc.rootDigest)) {
+                badBlocks.add(index);
+            }
+            return;
+        }
+        var leafBlock = index * entrySize / desc.hashBlockSize;
+        if (levelSizes.length > 1 && verifiedLeafBlocks.add(leafBlock)) {
+            // leaf blocks are only trusted once they hash to their entry in level 1
+            readBlock(hashBlock, desc.treeOffset + levelOffsets[0] + leafBlock * desc.hashBlockSize, Long.MAX_VALUE);
+            if (!MessageDigest.isEqual(hash(hashBlock), readEntry(1, leafBlock))) {
+                badLeafBlocks.add(leafBlock);
+            }
+        }
+        if (badLeafBlocks.contains(leafBlock) || !MessageDigest.isEqual(actual, readEntry(0, index))) {
+            badBlocks.add(index);
+        }
+    }
+
+    private boolean verifyUpperLevels() throws IOException {
+        if (levelSizes.length == 0) {
+            return true;
+        }
+        var top = levelSizes.length - 1;
+        readBlock(hashBlock, desc.treeOffset + levelOffsets[top], Long.MAX_VALUE);
+        if (levelSizes[top] != desc.hashBlockSize || !MessageDigest.isEqual(hash(hashBlock), desc.rootDigest)) {
+            return false;
+        }
+        // the leaf level is checked lazily while sampling, every level in between is checked against its parent
+        for (int level = top - 1; level >= 1; level--) {
+            var blocks = levelSizes[level] / desc.hashBlockSize;
+            for (long i = 0; i < blocks; i++) {
+                var expected = readEntry(level + 1, i);
+                readBlock(hashBlock, desc.treeOffset + levelOffsets[level] + i * desc.hashBlockSize, Long.MAX_VALUE);
+                if (!MessageDigest.isEqual(hash(hashBlock), expected)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the digest stored at {@code index} of the given level, i.e. the expected hash of
+     * block {@code index} of the level below (or of the data when {@code level} is 0)
+     */
+    private byte[] readEntry(int level, long index) throws IOException {
+        var entryPos = index * entrySize;
+        readBlock(entryBlock, desc.treeOffset + levelOffsets[level] + entryPos / desc.hashBlockSize * desc.hashBlockSize, Long.MAX_VALUE);
+        var entry = new byte[digestSize];
+        entryBlock.get((int) (entryPos % desc.hashBlockSize), entry);
+        return entry;
+    }
+
+    private byte[] hash(ByteBuffer block) {
+        hasher.reset();
+        hasher.update(desc.salt);
+        hasher.update(block.array(), 0, block.capacity());
+        return hasher.digest();
+    }
+
+    /**
+     * Reads a whole block at {@code pos}, zero-filling whatever lies beyond {@code limit}.
+     */
+    private void readBlock(ByteBuffer buf, long pos, long limit) throws IOException {
+        buf.clear();
+        var avail = Math.min(buf.capacity(), limit - pos);
+        buf.limit((int) avail);
+        ch.position(pos);
+        IOUtils.readFully(ch, buf);
+        java.util.Arrays.fill(buf.array(), (int) avail, buf.capacity(), (byte) 0);
+        buf.clear();
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return (x + y - 1) / y;
+    }
+}
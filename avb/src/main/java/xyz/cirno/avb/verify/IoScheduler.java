@@ -0,0 +1,180 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.PartitionProvider;
+import xyz.cirno.avb.util.Logger;
+
+/**
+ * Hashes partitions concurrently while limiting how many of them are read at once from each physical device,
+ * as reported by {@link PartitionProvider#deviceOf}.
+ * <p>
+ * A reader keeps its device for a run of {@code RUN_CHUNKS * CHUNK_SIZE} bytes before the next waiting reader
+ * gets a turn, so the device sees long sequential reads instead of interleaved small ones. Hashing runs on a
+ * separate pool and overlaps with reading the next run. Chunks come from a pool shared by all readers and are only
+ * taken while holding the device, at most two runs per concurrent read of each device, so buffered data is bounded
+ * by the devices being read rather than by the number of threads.
+ * <p>
+ * One scheduler can be shared by any number of verifiers, the per-device limits then apply to all of them.
+ */
+public final class IoScheduler {
+    private static final int CHUNK_SIZE = 262144;
+    private static final int RUN_CHUNKS = 16;
+    private static final Object UNKNOWN_DEVICE = new Object();
+
+    private final int readsPerDevice;
+    private final ThreadPoolExecutor readers;
+    private final ThreadPoolExecutor hashers;
+    private final Map<Object, Device> devices = new ConcurrentHashMap<>();
+    // chunks returned by the hashers, a chunk is only allocated when none is free
+    private final Queue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param reads  turns to read from the device
+     * @param chunks chunks that may be buffered for partitions on the device, read or waiting to be hashed
+     */
+    private record Device(Semaphore reads, Semaphore chunks) {
+    }
+
+    /**
+     * @param readsPerDevice partitions read concurrently from one device
+     * @param threads        partitions hashed concurrently in total
+     */
+    public IoScheduler(int readsPerDevice, int threads) {
+        if (readsPerDevice < 1 || threads < 1) {
+            throw new IllegalArgumentException("readsPerDevice and threads must be positive");
+        }
+        this.readsPerDevice = readsPerDevice;
+        this.readers = newDaemonPool(threads, "avb-io-reader");
+        this.hashers = newDaemonPool(threads, "avb-io-hasher");
+    }
+
+    private static ThreadPoolExecutor newDaemonPool(int threads, String name) {
+        var pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            var t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Computes the digest of the first {@code size} bytes of {@code desc.partitionName} salted as described by
+     * {@code desc}. Log output goes to the log of the calling thread.
+     *
+     * @param checkpoints checkpoints to resume hashing from, null to hash everything
+     * @return future of the digest, completing with null if the partition could not be read or hashed;
+     * cancelling it stops reading after the current run
+     */
+    public CompletableFuture<byte[]> digest(PartitionProvider provider, HashDescriptor desc, long size,
+                                            @Nullable HashCheckpoints checkpoints) {
+        var hashExecutor = Logger.inheritOutput(hashers);
+        var result = new CompletableFuture<byte[]>();
+        Logger.inheritOutput(readers).execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(readAndHash(provider, desc, size, checkpoints, hashExecutor, result));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private Device deviceOf(PartitionProvider provider, String partitionName) {
+        var device = provider.deviceOf(partitionName);
+        return devices.computeIfAbsent(device != null ? device : UNKNOWN_DEVICE,
+                d -> new Device(new Semaphore(readsPerDevice, true), new Semaphore(2 * RUN_CHUNKS * readsPerDevice)));
+    }
+
+    private byte[] readAndHash(PartitionProvider provider, HashDescriptor desc, long size,
+                               HashCheckpoints checkpoints, Executor hashExecutor, CompletableFuture<byte[]> result) {
+        var hasher = ContentHasher.of(desc, checkpoints);
+        if (hasher == null) {
+            return null;
+        }
+        var device = deviceOf(provider, desc.partitionName);
+        CompletableFuture<Void> hashed = CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> previous = hashed;
+        try (var ch = provider.openPartition(desc.partitionName)) {
+            ch.position(0);
+            var remaining = size;
+            while (remaining > 0) {
+                previous.join();
+                if (result.isDone()) {
+                    return null;
+                }
+                var run = new ArrayList<ByteBuffer>(RUN_CHUNKS);
+                var complete = false;
+                device.reads.acquireUninterruptibly();
+                try {
+                    for (var i = 0; i < RUN_CHUNKS && remaining > 0; i++) {
+                        var buffer = takeChunk(device);
+                        run.add(buffer);
+                        buffer.limit((int) Math.min(CHUNK_SIZE, remaining));
+                        while (buffer.hasRemaining()) {
+                            if (ch.read(buffer) < 0) {
+                                Logger.error("Unexpected end of channel");
+                                return null;
+                            }
+                        }
+                        remaining -= buffer.limit();
+                        buffer.flip();
+                    }
+                    complete = true;
+                } finally {
+                    device.reads.release();
+                    if (!complete) {
+                        returnChunks(device, run);
+                    }
+                }
+                previous = hashed;
+                hashed = hashed.thenRunAsync(() -> {
+                    try {
+                        run.forEach(hasher::update);
+                    } finally {
+                        returnChunks(device, run);
+                    }
+                }, hashExecutor);
+            }
+        } catch (IOException e) {
+            Logger.error("IOException while reading channel: " + e.getMessage());
+            return null;
+        }
+        hashed.join();
+        return hasher.digest();
+    }
+
+    /**
+     * Waits until the device may buffer another chunk, chunks of runs that are being hashed are returned soon.
+     */
+    private ByteBuffer takeChunk(Device device) {
+        device.chunks.acquireUninterruptibly();
+        var buffer = freeChunks.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    private void returnChunks(Device device, List<ByteBuffer> run) {
+        freeChunks.addAll(run);
+        device.chunks.release(run.size());
+    }
+}
@@ -0,0 +1,121 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import xyz.cirno.avb.AvbDescriptor;
+import xyz.cirno.avb.ChainPartitionDescriptor;
+import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.HashTreeDescriptor;
+import xyz.cirno.avb.KernelCmdlineDescriptor;
+import xyz.cirno.avb.ParsedVerifiedBootMetaImage;
+import xyz.cirno.avb.PropertyDescriptor;
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Lists what differs between the verified vbmeta images of two slots.
+ */
+public final class SlotComparison {
+    /**
+     * @param descriptorIndex index of the differing descriptor, or -1 for the vbmeta image itself
+     */
+    public record Difference(String vbmetaPartition, int descriptorIndex, String slotA, String slotB) {
+        @Override
+        public @NotNull String toString() {
+            var where = descriptorIndex < 0 ? vbmetaPartition : vbmetaPartition + ".descriptors[" + descriptorIndex + "]";
+            return where + ": " + slotA + " <> " + slotB;
+        }
+    }
+
+    private SlotComparison() {
+    }
+
+    public static List<Difference> compare(AvbVerifyResult a, AvbVerifyResult b) {
+        return compare(a, null, b, null);
+    }
+
+    /**
+     * Like {@link #compare(AvbVerifyResult, AvbVerifyResult)}, additionally reporting hash partitions whose
+     * content digests, as computed by the verifiers using {@code digestsA} and {@code digestsB}, differ.
+     */
+    public static List<Difference> compare(AvbVerifyResult a, @Nullable DigestCache digestsA,
+                                           AvbVerifyResult b, @Nullable DigestCache digestsB) {
+        var result = new ArrayList<Difference>();
+        var names = new TreeSet<String>();
+        names.addAll(a.partitionRecords.keySet());
+        names.addAll(b.partitionRecords.keySet());
+        for (var name : names) {
+            var recordA = a.partitionRecords.get(name);
+            var recordB = b.partitionRecords.get(name);
+            if (recordA == null || recordB == null) {
+                result.add(new Difference(name, -1, recordA == null ? "(not verified)" : "present", recordB == null ? "(not verified)" : "present"));
+                continue;
+            }
+            compareImages(name, recordA.vbmetaImage(), recordB.vbmetaImage(), result);
+            if (digestsA != null && digestsB != null) {
+                compareContents(name, recordA.vbmetaImage(), digestsA, digestsB, result);
+            }
+        }
+        return result;
+    }
+
+    private static void compareImages(String name, ParsedVerifiedBootMetaImage a, ParsedVerifiedBootMetaImage b, List<Difference> result) {
+        var keyA = a.publicKey == null ? "(none)" : a.publicKey.toString();
+        var keyB = b.publicKey == null ? "(none)" : b.publicKey.toString();
+        if (!keyA.equals(keyB)) {
+            result.add(new Difference(name, -1, "publicKey=" + keyA, "publicKey=" + keyB));
+        }
+        if (a.header.rollbackIndex != b.header.rollbackIndex) {
+            result.add(new Difference(name, -1, "rollbackIndex=" + a.header.rollbackIndex, "rollbackIndex=" + b.header.rollbackIndex));
+        }
+        if (a.signatureValid != b.signatureValid) {
+            result.add(new Difference(name, -1, "signatureValid=" + a.signatureValid, "signatureValid=" + b.signatureValid));
+        }
+        var count = Math.max(a.descriptors.size(), b.descriptors.size());
+        for (var i = 0; i < count; i++) {
+            var descA = i < a.descriptors.size() ? a.descriptors.get(i) : null;
+            var descB = i < b.descriptors.size() ? b.descriptors.get(i) : null;
+            if (descA != null && descB != null && Arrays.equals(descA.toByteArray(), descB.toByteArray())) {
+                continue;
+            }
+            result.add(new Difference(name, i, summarize(descA), summarize(descB)));
+        }
+    }
+
+    private static void compareContents(String name, ParsedVerifiedBootMetaImage image, DigestCache digestsA,
+                                        DigestCache digestsB, List<Difference> result) {
+        for (var i = 0; i < image.descriptors.size(); i++) {
+            if (!(image.descriptors.get(i) instanceof HashDescriptor hd)) {
+                continue;
+            }
+            var digestA = digestsA.get(hd.partitionName, hd.hashAlgorithm, hd.salt, hd.imageSize);
+            var digestB = digestsB.get(hd.partitionName, hd.hashAlgorithm, hd.salt, hd.imageSize);
+            if (digestA != null && digestB != null && !Arrays.equals(digestA, digestB)) {
+                result.add(new Difference(name, i, "content " + hd.partitionName + " digest=" + IOUtils.bytesToHex(digestA),
+                        "content " + hd.partitionName + " digest=" + IOUtils.bytesToHex(digestB)));
+            }
+        }
+    }
+
+    private static String summarize(AvbDescriptor desc) {
+        if (desc == null) {
+            return "(missing)";
+        } else if (desc instanceof HashDescriptor hd) {
+            return "hash " + hd.partitionName + " size=" + hd.imageSize + " digest=" + IOUtils.bytesToHex(hd.digest);
+        } else if (desc instanceof HashTreeDescriptor htd) {
+            return "hashtree " + htd.partitionName + " size=" + htd.imageSize + " root=" + IOUtils.bytesToHex(htd.rootDigest);
+        } else if (desc instanceof ChainPartitionDescriptor cpd) {
+            return "chain " + cpd.partitionName + " key=" + IOUtils.sha256ToHex(cpd.publicKey.toByteArray());
+        } else if (desc instanceof PropertyDescriptor pd) {
+            return "prop " + pd.name + "='" + pd.value + "'";
+        } else if (desc instanceof KernelCmdlineDescriptor kcd) {
+            return "cmdline '" + kcd.kernelCmdline + "'";
+        }
+        return "descriptor tag " + desc.tag;
+    }
+}
@@ -0,0 +1,84 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import xyz.cirno.avb.AvbParseLimits;
+import xyz.cirno.avb.ParsedVerifiedBootMetaImage;
+import xyz.cirno.avb.VerifiedBootHeader;
+import xyz.cirno.avb.VerifiedBootMetaImage;
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Parsed vbmeta images keyed by the sha256 of their raw bytes, shared between verifiers that are likely to see
+ * identical images, e.g. the two slots of an A/B device. Parsing and signature checking then happen once.
+ * <p>
+ * Callers get their own copy of the cached image, so they are free to modify it. Caches that live longer than
+ * one verification call {@link #evictUnused()} after each, so images that were replaced do not pile up.
+ */
+public final class VbmetaImageCache {
+    private final Map<String, ParsedVerifiedBootMetaImage> images = new ConcurrentHashMap<>();
+    // keys of the images returned since the last evictUnused
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Reads and parses a vbmeta image from the current position of {@code ch}.
+     *
+     * @throws xyz.cirno.avb.InvalidAvbDataException if there is no vbmeta header at that position
+     */
+    @Nullable
+    public ParsedVerifiedBootMetaImage parse(ReadableByteChannel ch) throws IOException {
+        return parse(ch, AvbParseLimits.DEFAULT);
+    }
+
+    /**
+     * Like {@link #parse(ReadableByteChannel)}, rejecting images that exceed {@code limits} before reading them.
+     */
+    @Nullable
+    public ParsedVerifiedBootMetaImage parse(ReadableByteChannel ch, AvbParseLimits limits) throws IOException {
+        var headerBuf = ByteBuffer.allocate(VerifiedBootHeader.HEADER_SIZE);
+        IOUtils.readFully(ch, headerBuf);
+        headerBuf.flip();
+        var header = VerifiedBootHeader.parseFrom(headerBuf.duplicate());
+        if (header == null) {
+            return null;
+        }
+        var blob = ByteBuffer.allocate(limits.checkVbmetaSize(header));
+        blob.put(headerBuf);
+        IOUtils.readFully(ch, blob);
+        var key = IOUtils.sha256ToHex(blob.array());
+        var cached = images.get(key);
+        if (cached == null) {
+            cached = VerifiedBootMetaImage.parseFrom(Channels.newChannel(new ByteArrayInputStream(blob.array())), limits);
+            if (cached == null) {
+                return null;
+            }
+            images.putIfAbsent(key, cached);
+        }
+        used.add(key);
+        return cached.clone();
+    }
+
+    /**
+     * Drops the images that {@link #parse} has not returned since the last call.
+     */
+    public void evictUnused() {
+        images.keySet().retainAll(used);
+        used.clear();
+    }
+
+    /**
+     * @return the number of distinct images cached
+     */
+    public int size() {
+        return images.size();
+    }
+}
@@ -0,0 +1,35 @@
+package xyz.cirno.avb.verify;
+
+import org.jetbrains.annotations.NotNull;
+
+import xyz.cirno.avb.util.IOUtils;
+
+/**
+ * Progress of a verification, published by {@link AvbVerifier#events()} as soon as each step completes.
+ */
+public interface VerificationEvent {
+    record VbmetaParsed(String partitionName, int descriptorCount) implements VerificationEvent {
+    }
+
+    /**
+     * @param signed false if the vbmeta image has no public key, {@code valid} is then false as well
+     */
+    record SignatureChecked(String partitionName, boolean signed, boolean valid) implements VerificationEvent {
+    }
+
+    record PartitionHashed(String partitionName, long size, byte[] digest, boolean matches) implements VerificationEvent {
+        @Override
+        public @NotNull String toString() {
+            return "PartitionHashed(partitionName=" + partitionName +
+                    ", size=" + size +
+                    ", digest=" + (digest == null ? "null" : IOUtils.bytesToHex(digest)) +
+                    ", matches=" + matches + ")";
+        }
+    }
+
+    /**
+     * An issue that is also part of the final result, e.g. a {@link VerificationIssue.HashMismatch}.
+     */
+    record IssueFound(VerificationIssue issue) implements VerificationEvent {
+    }
+}
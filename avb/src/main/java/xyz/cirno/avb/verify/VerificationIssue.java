@@ -64,9 +64,31 @@ public interface VerificationIssue {
         }
     }
 
+    record HashTreeMismatch(
+            String vbmetaPartition,
+            int descriptorIndex,
+            String partitionName
+    ) implements VerificationIssue {
+        @Override
+        public @NotNull String toString() {
+            return "HashTreeMismatch(vbmetaPartition=" + vbmetaPartition +
+                    ", descriptorIndex=" + descriptorIndex +
+                    ", partitionName=" + partitionName + ")";
+        }
+    }
+
     record InvalidSignature(String vbmetaPartition) implements VerificationIssue {
         public @NotNull String toString() {
             return "InvalidSignature(partitionName=" + vbmetaPartition + ")";
         }
     }
+
+    /**
+     * Verification was cancelled or ran out of time before this partition was checked.
+     */
+    record NotVerified(String partitionName) implements VerificationIssue {
+        public @NotNull String toString() {
+            return "NotVerified(partitionName=" + partitionName + ")";
+        }
+    }
 }
@@ -0,0 +1,238 @@
+package xyz.cirno.avb.test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import xyz.cirno.avb.AvbAlgorithmType;
+import xyz.cirno.avb.AvbDescriptor;
+import xyz.cirno.avb.AvbKeyPair;
+import xyz.cirno.avb.ChainPartitionDescriptor;
+import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.HashFooterWriter;
+import xyz.cirno.avb.PartitionProvider;
+import xyz.cirno.avb.VerifiedBootHeader;
+import xyz.cirno.avb.VerifiedBootMetaImage;
+
+/**
+ * Generates a deterministic set of images for scale and performance tests, so they don't depend on real device
+ * images.
+ * <p>
+ * {@code vbmeta} is signed with {@link #rootKey} and chains to {@code vbmeta_chain1}, which chains to
+ * {@code vbmeta_chain2} and so on up to {@link #chainDepth}, all signed with {@link #chainKey}. The partitions
+ * {@code part000}, {@code part001}, ... are spread round-robin over these vbmeta images as hash descriptors, and
+ * every {@link #footerEvery}th one also carries an unsigned hash footer like a boot partition. Only the first
+ * {@link #denseSize} bytes of a partition are random data, the rest is a hole, so multi-GB images are cheap to
+ * create but still have to be read in full to be verified.
+ */
+public class SyntheticAvbCorpus {
+    public static final String ROOT = "vbmeta";
+
+    public enum FaultKind {
+        // flips a byte in the partition data, a HashMismatch
+        CORRUPT_DATA,
+        // truncates the partition by one block, a HashMismatch
+        TRUNCATE,
+        // flips a byte in the signature of a vbmeta image, an InvalidSignature
+        CORRUPT_SIGNATURE,
+        // signs a chained vbmeta image with the root key instead, a PublicKeyMismatch
+        WRONG_CHAIN_KEY,
+    }
+
+    /**
+     * @param partitionName a hash partition for data faults, a vbmeta image for signature and key faults
+     */
+    public record Fault(FaultKind kind, String partitionName) {
+    }
+
+    public int partitionCount = 16;
+    public int chainDepth = 1;
+    public long imageSize = 64 * 1024;
+    public long denseSize = 64 * 1024;
+    // 0 for no footers
+    public int footerEvery = 4;
+    public long seed = 1;
+    public AvbKeyPair rootKey;
+    public AvbKeyPair chainKey;
+    public final List<Fault> faults = new ArrayList<>();
+
+    /**
+     * Uses {@code testkey_rsa4096.pem} as root key and {@code testkey_rsa2048.pem} as chain key from the
+     * {@code test.keysDir} directory.
+     */
+    public static SyntheticAvbCorpus withTestKeys() {
+        var corpus = new SyntheticAvbCorpus();
+        corpus.rootKey = loadTestKey("testkey_rsa4096.pem");
+        corpus.chainKey = loadTestKey("testkey_rsa2048.pem");
+        return corpus;
+    }
+
+    public static AvbKeyPair loadTestKey(String name) {
+        var path = Path.of(System.getProperty("test.keysDir", "../keys"), name);
+        var keyPair = AvbKeyPair.fromPrivateKeyPem(path);
+        if (keyPair == null) {
+            throw new IllegalStateException("failed to load test key " + path);
+        }
+        return keyPair;
+    }
+
+    public static String partitionName(int index) {
+        return String.format("part%03d", index);
+    }
+
+    public static String vbmetaName(int level) {
+        return level == 0 ? ROOT : "vbmeta_chain" + level;
+    }
+
+    public static PartitionProvider provider(Path dir) {
+        return name -> {
+            try {
+                return FileChannel.open(dir.resolve(name + ".img"), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Writes {@code <name>.img} for every vbmeta image and partition into {@code dir}, replacing existing files.
+     */
+    public void generate(Path dir) throws IOException {
+        if (partitionCount < 0 || chainDepth < 0 || imageSize < 0 || denseSize < 0) {
+            throw new IllegalArgumentException("negative corpus parameter");
+        }
+        Files.createDirectories(dir);
+        var descriptors = new ArrayList<List<AvbDescriptor>>();
+        for (var level = 0; level <= chainDepth; level++) {
+            descriptors.add(new ArrayList<>());
+        }
+        for (var i = 0; i < partitionCount; i++) {
+            var name = partitionName(i);
+            var random = new Random(seed * 1_000_003L + i);
+            var salt = new byte[32];
+            random.nextBytes(salt);
+            var dense = new byte[(int) Math.min(imageSize, denseSize)];
+            random.nextBytes(dense);
+            var path = dir.resolve(name + ".img");
+            try (var ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ch.write(ByteBuffer.wrap(dense), 0);
+                if (imageSize > dense.length) {
+                    // a single byte at the end leaves the rest of the file sparse
+                    ch.write(ByteBuffer.wrap(new byte[1]), imageSize - 1);
+                }
+                if (footerEvery > 0 && i % footerEvery == footerEvery - 1) {
+                    var writer = new HashFooterWriter(name);
+                    writer.salt = salt;
+                    writer.writeTo(ch, null);
+                }
+            }
+            descriptors.get(i % (chainDepth + 1)).add(
+                    new HashDescriptor(imageSize, "sha256", name, salt, digest(salt, dense, imageSize), 0));
+        }
+        for (var level = 0; level <= chainDepth; level++) {
+            var name = vbmetaName(level);
+            var levelDescriptors = new ArrayList<AvbDescriptor>();
+            if (level < chainDepth) {
+                levelDescriptors.add(new ChainPartitionDescriptor(level + 1, vbmetaName(level + 1), chainKey.publicKey(), 0));
+            }
+            levelDescriptors.addAll(descriptors.get(level));
+            var key = level == 0 || faults.contains(new Fault(FaultKind.WRONG_CHAIN_KEY, name)) ? rootKey : chainKey;
+            Files.write(dir.resolve(name + ".img"), signedVbmeta(level, levelDescriptors, key));
+        }
+        for (var fault : faults) {
+            applyFault(dir, fault);
+        }
+    }
+
+    private static byte[] digest(byte[] salt, byte[] dense, long size) {
+        try {
+            var hasher = MessageDigest.getInstance("SHA-256");
+            hasher.update(salt);
+            hasher.update(dense);
+            var zeros = new byte[1048576];
+            for (var remaining = size - dense.length; remaining > 0; remaining -= zeros.length) {
+                hasher.update(zeros, 0, (int) Math.min(zeros.length, remaining));
+            }
+            return hasher.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] signedVbmeta(int level, List<AvbDescriptor> descriptors, AvbKeyPair key) {
+        var vbmeta = new VerifiedBootMetaImage();
+        vbmeta.header = new VerifiedBootHeader();
+        vbmeta.header.requiredLibavbVersionMajor = 1;
+        vbmeta.header.rollbackIndexLocation = level;
+        if (level > 0) {
+            vbmeta.header.requiredLibavbVersionMinor = 2;
+        }
+        vbmeta.header.algorithmType = switch (key.publicKey().keySizeBits) {
+            case 2048 -> AvbAlgorithmType.SHA256_RSA2048;
+            case 4096 -> AvbAlgorithmType.SHA256_RSA4096;
+            case 8192 -> AvbAlgorithmType.SHA256_RSA8192;
+            default -> throw new IllegalArgumentException("unsupported key size " + key.publicKey().keySizeBits);
+        };
+        vbmeta.descriptors = descriptors;
+        return vbmeta.toSignedByteArray(key);
+    }
+
+    private void applyFault(Path dir, Fault fault) throws IOException {
+        var path = dir.resolve(fault.partitionName() + ".img");
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            switch (fault.kind()) {
+                case CORRUPT_DATA -> flipByte(ch, 0);
+                // cuts into the data, so a footer is removed as well
+                case TRUNCATE -> ch.truncate(Math.max(0, Math.min(ch.size(), imageSize) - HashFooterWriter.BLOCK_SIZE));
+                case CORRUPT_SIGNATURE -> {
+                    // the signature offset in the header counts from the end of the 256 byte header
+                    var header = ByteBuffer.allocate(56);
+                    ch.read(header, 0);
+                    flipByte(ch, 256 + header.getLong(48));
+                }
+                case WRONG_CHAIN_KEY -> {
+                    // applied while signing
+                }
+            }
+        }
+    }
+
+    private static void flipByte(FileChannel ch, long position) throws IOException {
+        var b = ByteBuffer.allocate(1);
+        ch.read(b, position);
+        b.put(0, (byte) (b.get(0) ^ 0xff));
+        b.rewind();
+        ch.write(b, position);
+    }
+
+    /**
+     * {@code SyntheticAvbCorpus <dir> [partitions] [chain depth] [image size]}, with the keys from {@code test.keysDir}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: SyntheticAvbCorpus <dir> [partitions] [chain depth] [image size]");
+            System.exit(1);
+        }
+        var corpus = withTestKeys();
+        if (args.length > 1) {
+            corpus.partitionCount = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            corpus.chainDepth = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            corpus.imageSize = Long.parseLong(args[3]);
+        }
+        corpus.generate(Path.of(args[0]));
+    }
+}
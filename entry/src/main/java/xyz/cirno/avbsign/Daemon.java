@@ -0,0 +1,175 @@
+package xyz.cirno.avbsign;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import xyz.cirno.avb.provider.HttpPartitionProvider;
+import xyz.cirno.avb.util.Logger;
+
+/**
+ * Serves check/fix/info commands over a Unix domain socket, keeping a {@link SessionCache} warm between them.
+ * See {@link DaemonProtocol} for the wire format.
+ */
+final class Daemon {
+    static final Set<String> FORWARDED_COMMANDS = Set.of("check", "check-slots", "fix", "info");
+
+    private final Path socketPath;
+    private final ExecutorService workers;
+    private final SessionCache cache = new SessionCache();
+
+    Daemon(Path socketPath, int threads) {
+        this.socketPath = socketPath;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    void serve() throws IOException {
+        if (Files.exists(socketPath)) {
+            if (tryConnect(socketPath) != null) {
+                throw new IllegalStateException("daemon already listening on " + socketPath);
+            }
+            Files.delete(socketPath);
+        }
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socketPath);
+                } catch (IOException ignore) {
+                }
+            }));
+            Logger.info("Listening on " + socketPath);
+            while (true) {
+                var client = server.accept();
+                workers.execute(() -> handle(client));
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            var in = new DataInputStream(Channels.newInputStream(client));
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            var request = DaemonProtocol.readFrame(in);
+            if (request == null || request.type() != DaemonProtocol.REQUEST) {
+                return;
+            }
+            var args = DaemonProtocol.decodeArgs(request.payload());
+            var output = new PrintStream(new DaemonProtocol.FrameOutputStream(out), true, StandardCharsets.UTF_8);
+            int code;
+            Logger.setThreadOutput(output);
+            try {
+                if (args.length == 0 || !FORWARDED_COMMANDS.contains(args[0])) {
+                    output.println("command not supported by daemon");
+                    code = 1;
+                } else {
+                    code = Main.run(args, output, cache);
+                }
+            } catch (Throwable e) {
+                e.printStackTrace(output);
+                code = 1;
+            } finally {
+                Logger.setThreadOutput(null);
+            }
+            output.flush();
+            DaemonProtocol.writeFrame(out, DaemonProtocol.EXIT, DaemonProtocol.encodeExitCode(code));
+        } catch (IOException e) {
+            Logger.warn("Daemon client failed: " + e.getMessage());
+        }
+    }
+
+    private static SocketChannel tryConnect(Path socketPath) {
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs {@code args} on a daemon listening at {@code socketPath}, copying its output to {@code out}.
+     *
+     * @return the exit code, or null if no daemon is reachable and the command should run locally
+     */
+    static Integer forward(Path socketPath, String[] args, PrintStream out) {
+        if (!FORWARDED_COMMANDS.contains(args[0])) {
+            return null;
+        }
+        SocketChannel ch;
+        try {
+            if (!Files.exists(socketPath)) {
+                return null;
+            }
+            ch = tryConnect(socketPath);
+        } catch (LinkageError e) {
+            // runtime without Unix domain socket support
+            return null;
+        }
+        if (ch == null) {
+            return null;
+        }
+        try (ch) {
+            var in = new DataInputStream(Channels.newInputStream(ch));
+            var dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            DaemonProtocol.writeFrame(dos, DaemonProtocol.REQUEST, DaemonProtocol.encodeArgs(absolutizePaths(args)));
+            while (true) {
+                var frame = DaemonProtocol.readFrame(in);
+                if (frame == null) {
+                    throw new IOException("daemon closed connection");
+                }
+                if (frame.type() == DaemonProtocol.OUTPUT) {
+                    out.write(frame.payload());
+                } else if (frame.type() == DaemonProtocol.EXIT) {
+                    out.flush();
+                    return DaemonProtocol.decodeExitCode(frame.payload());
+                }
+            }
+        } catch (IOException e) {
+            out.println("Lost connection to daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * The daemon has its own working directory, so relative patterns and directories are resolved here. URLs are
+     * passed unchanged.
+     */
+    static String[] absolutizePaths(String[] args) {
+        var result = new ArrayList<String>();
+        result.add(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                var option = args[i];
+                var value = args[++i];
+                // programs without a directory are looked up in PATH
+                if (option.equals("--signing-key") || option.equals("--checkpoint-dir") || (option.equals("--signing-helper") && value.contains("/"))) {
+                    value = Paths.get(value).toAbsolutePath().toString();
+                }
+                result.add(option);
+                result.add(value);
+            } else if (HttpPartitionProvider.isHttpPattern(args[i])) {
+                result.add(args[i]);
+            } else {
+                result.add(Paths.get(args[i]).toAbsolutePath().toString());
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,106 @@
+package xyz.cirno.avbsign;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Framing used between {@link Daemon} and its clients.
+ * <p>
+ * Every frame is a big-endian int32 length, a type byte and {@code length - 1} payload bytes.
+ * The client sends one {@link #REQUEST} frame holding the NUL-separated command line, the daemon answers
+ * with any number of {@link #OUTPUT} frames followed by one {@link #EXIT} frame holding the int32 exit code.
+ */
+final class DaemonProtocol {
+    static final byte REQUEST = 'R';
+    static final byte OUTPUT = 'O';
+    static final byte EXIT = 'X';
+
+    private static final int MAX_FRAME_SIZE = 1 << 20;
+
+    static Path defaultSocketPath() {
+        return Paths.get(System.getProperty("java.io.tmpdir", "/tmp"), "avbsign.sock");
+    }
+
+    record Frame(byte type, byte[] payload) {
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload, int off, int len) throws IOException {
+        synchronized (out) {
+            out.writeInt(len + 1);
+            out.writeByte(type);
+            out.write(payload, off, len);
+            out.flush();
+        }
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        writeFrame(out, type, payload, 0, payload.length);
+    }
+
+    /**
+     * @return the next frame, or null if the peer closed the connection
+     */
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int len;
+        try {
+            len = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (len < 1 || len > MAX_FRAME_SIZE) {
+            throw new IOException("invalid frame length " + len);
+        }
+        var type = in.readByte();
+        var payload = new byte[len - 1];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    static byte[] encodeArgs(String[] args) {
+        return String.join("\0", args).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String[] decodeArgs(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8).split("\0", -1);
+    }
+
+    static byte[] encodeExitCode(int code) {
+        return new byte[]{(byte) (code >>> 24), (byte) (code >>> 16), (byte) (code >>> 8), (byte) code};
+    }
+
+    static int decodeExitCode(byte[] payload) {
+        return ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+    }
+
+    /**
+     * Sends everything written to it as {@link #OUTPUT} frames.
+     */
+    static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                var n = Math.min(len, MAX_FRAME_SIZE - 1);
+                writeFrame(out, OUTPUT, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package xyz.cirno.avbsign;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+
+import xyz.cirno.avb.AvbDescriptor;
+import xyz.cirno.avb.AvbImageInfo;
+import xyz.cirno.avb.ChainPartitionDescriptor;
+import xyz.cirno.avb.HashDescriptor;
+import xyz.cirno.avb.HashTreeDescriptor;
+import xyz.cirno.avb.KernelCmdlineDescriptor;
+import xyz.cirno.avb.PropertyDescriptor;
+import xyz.cirno.avb.util.IOUtils;
+import xyz.cirno.avb.util.Logger;
+
+/**
+ * Prints the AVB metadata of an image like {@code avbtool info_image}, or of every file in a directory as one
+ * JSON object per line. Only the footer and vbmeta image of each file are read, see {@link AvbImageInfo}.
+ */
+final class InfoCommand {
+    // the reads are small and seek bound, so use more threads than cores
+    private static final int PARALLELISM = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+    private final boolean json;
+    // only these properties are printed and descriptors are omitted, null for everything
+    private final List<String> queriedProperties;
+
+    private InfoCommand(boolean json, List<String> queriedProperties) {
+        this.json = json;
+        this.queriedProperties = queriedProperties;
+    }
+
+    static int run(String target, Map<String, String> options, PrintStream out) throws IOException {
+        var path = Path.of(target);
+        var directory = Files.isDirectory(path);
+        var format = options.getOrDefault("format", directory ? "json" : "text");
+        if (!format.equals("json") && !format.equals("text")) {
+            Logger.error("--format must be json or text");
+            return 1;
+        }
+        var property = options.get("property");
+        var command = new InfoCommand(format.equals("json"), property == null ? null : Arrays.asList(property.split(",")));
+        if (!directory) {
+            AvbImageInfo info;
+            try {
+                info = AvbImageInfo.read(path);
+            } catch (RuntimeException e) {
+                command.printError(path, e, out);
+                return 1;
+            }
+            if (info == null) {
+                command.printError(path, null, out);
+                return 1;
+            }
+            command.print(path, info, out);
+            return 0;
+        }
+
+        List<Path> images;
+        try (var files = Files.list(path)) {
+            images = files.filter(Files::isRegularFile).sorted().toList();
+        }
+        var executor = Executors.newFixedThreadPool(PARALLELISM);
+        try {
+            var pending = AvbImageInfo.readAll(images, executor);
+            var result = 0;
+            // printed in path order as soon as each image and all before it are read
+            for (var i = 0; i < images.size(); i++) {
+                try {
+                    var info = pending.get(i).join();
+                    if (info == null) {
+                        // reported, but raw images in the same directory are expected
+                        command.printError(images.get(i), null, out);
+                    } else {
+                        command.print(images.get(i), info, out);
+                    }
+                } catch (CompletionException e) {
+                    var cause = e.getCause();
+                    command.printError(images.get(i), cause instanceof UncheckedIOException io ? io.getCause() : cause, out);
+                    result = 1;
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void printError(Path image, Throwable error, PrintStream out) {
+        if (json) {
+            var message = error == null ? "no AVB metadata found" : String.valueOf(error.getMessage());
+            out.println("{\"path\":" + quote(image.toString()) + ",\"error\":" + quote(message) + "}");
+        } else if (error == null) {
+            out.println("No AVB metadata found in " + image);
+        } else {
+            out.println(image + ": " + error.getMessage());
+        }
+    }
+
+    private void print(Path image, AvbImageInfo info, PrintStream out) {
+        if (json) {
+            out.println(toJson(image, info));
+        } else if (queriedProperties != null) {
+            for (var name : queriedProperties) {
+                var value = info.property(name);
+                if (value != null) {
+                    out.println(name + ": " + value);
+                }
+            }
+        } else {
+            printText(info, out);
+        }
+    }
+
+    private static void printText(AvbImageInfo info, PrintStream out) {
+        if (info.footer != null) {
+            out.printf("Footer version:           %d.%d%n", info.footer.versionMajor, info.footer.versionMinor);
+            out.printf("Image size:               %d bytes%n", info.imageSize);
+            out.printf("Original image size:      %d bytes%n", info.footer.originalImageSize);
+            out.printf("VBMeta offset:            %d%n", info.footer.vbmetaOffset);
+            out.printf("VBMeta size:              %d bytes%n", info.footer.vbmetaSize);
+        }
+        var vbmeta = info.vbmeta;
+        var header = vbmeta.header;
+        out.printf("Minimum libavb version:   %d.%d%n", header.requiredLibavbVersionMajor, header.requiredLibavbVersionMinor);
+        out.printf("Algorithm:                %s%n", header.algorithmType);
+        if (vbmeta.publicKey != null) {
+            out.printf("Public key (sha256):      %s%n", IOUtils.sha256ToHex(vbmeta.publicKey.toByteArray()));
+            out.printf("Signature valid:          %s%n", vbmeta.signatureValid);
+        }
+        out.printf("Rollback index:           %d%n", header.rollbackIndex);
+        out.printf("Flags:                    %d%n", header.flags);
+        out.printf("Rollback index location:  %d%n", header.rollbackIndexLocation);
+        out.printf("Release string:           '%s'%n", info.releaseString());
+        out.println("Descriptors:");
+        for (var desc : vbmeta.descriptors) {
+            out.println(describe(desc));
+        }
+    }
+
+    private static String describe(AvbDescriptor desc) {
+        if (desc instanceof HashDescriptor hd) {
+            return "    Hash descriptor:\n"
+                    + "      Image Size:            " + hd.imageSize + " bytes\n"
+                    + "      Hash Algorithm:        " + hd.hashAlgorithm + "\n"
+                    + "      Partition Name:        " + hd.partitionName + "\n"
+                    + "      Salt:                  " + IOUtils.bytesToHex(hd.salt) + "\n"
+                    + "      Digest:                " + IOUtils.bytesToHex(hd.digest) + "\n"
+                    + "      Flags:                 " + hd.flags;
+        } else if (desc instanceof HashTreeDescriptor htd) {
+            return "    Hashtree descriptor:\n"
+                    + "      Image Size:            " + htd.imageSize + " bytes\n"
+                    + "      Tree Offset:           " + htd.treeOffset + "\n"
+                    + "      Tree Size:             " + htd.treeSize + " bytes\n"
+                    + "      Data Block Size:       " + htd.dataBlockSize + " bytes\n"
+                    + "      Hash Block Size:       " + htd.hashBlockSize + " bytes\n"
+                    + "      Hash Algorithm:        " + htd.hashAlgorithm + "\n"
+                    + "      Partition Name:        " + htd.partitionName + "\n"
+                    + "      Salt:                  " + IOUtils.bytesToHex(htd.salt) + "\n"
+                    + "      Root Digest:           " + IOUtils.bytesToHex(htd.rootDigest) + "\n"
+                    + "      Flags:                 " + htd.flags;
+        } else if (desc instanceof ChainPartitionDescriptor cpd) {
+            return "    Chain Partition descriptor:\n"
+                    + "      Partition Name:          " + cpd.partitionName + "\n"
+                    + "      Rollback Index Location: " + cpd.rollbackIndexLocation + "\n"
+                    + "      Public key (sha256):     " + IOUtils.sha256ToHex(cpd.publicKey.toByteArray()) + "\n"
+                    + "      Flags:                   " + cpd.flags;
+        } else if (desc instanceof PropertyDescriptor pd) {
+            return "    Prop: " + pd.name + " -> '" + pd.value + "'";
+        } else if (desc instanceof KernelCmdlineDescriptor kcd) {
+            return "    Kernel Cmdline descriptor:\n"
+                    + "      Flags:                 " + kcd.flags + "\n"
+                    + "      Kernel Cmdline:        '" + kcd.kernelCmdline + "'";
+        }
+        return "    Unknown descriptor (tag " + desc.tag + ")";
+    }
+
+    private String toJson(Path image, AvbImageInfo info) {
+        var vbmeta = info.vbmeta;
+        var header = vbmeta.header;
+        var sb = new StringBuilder("{");
+        sb.append("\"path\":").append(quote(image.toString()));
+        sb.append(",\"image_size\":").append(info.imageSize);
+        if (info.footer != null) {
+            sb.append(",\"footer\":{\"version\":").append(quote(info.footer.versionMajor + "." + info.footer.versionMinor))
+                    .append(",\"original_image_size\":").append(info.footer.originalImageSize)
+                    .append(",\"vbmeta_offset\":").append(info.footer.vbmetaOffset)
+                    .append(",\"vbmeta_size\":").append(info.footer.vbmetaSize).append('}');
+        }
+        sb.append(",\"required_libavb_version\":")
+                .append(quote(header.requiredLibavbVersionMajor + "." + header.requiredLibavbVersionMinor));
+        sb.append(",\"algorithm\":").append(quote(header.algorithmType.name()));
+        if (vbmeta.publicKey != null) {
+            sb.append(",\"public_key_sha256\":").append(quote(IOUtils.sha256ToHex(vbmeta.publicKey.toByteArray())));
+            sb.append(",\"signature_valid\":").append(vbmeta.signatureValid);
+        }
+        sb.append(",\"rollback_index\":").append(header.rollbackIndex);
+        sb.append(",\"rollback_index_location\":").append(header.rollbackIndexLocation);
+        sb.append(",\"flags\":").append(header.flags);
+        sb.append(",\"release_string\":").append(quote(info.releaseString()));
+        sb.append(",\"properties\":{");
+        var first = true;
+        for (var entry : info.properties().entrySet()) {
+            if (queriedProperties != null && !queriedProperties.contains(entry.getKey())) {
+                continue;
+            }
+            sb.append(first ? "" : ",").append(quote(entry.getKey())).append(':').append(quote(entry.getValue()));
+            first = false;
+        }
+        sb.append('}');
+        if (queriedProperties == null) {
+            sb.append(",\"descriptors\":[");
+            for (var i = 0; i < vbmeta.descriptors.size(); i++) {
+                sb.append(i == 0 ? "" : ",").append(toJson(vbmeta.descriptors.get(i)));
+            }
+            sb.append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String toJson(AvbDescriptor desc) {
+        if (desc instanceof HashDescriptor hd) {
+            return "{\"type\":\"hash\",\"partition_name\":" + quote(hd.partitionName)
+                    + ",\"image_size\":" + hd.imageSize
+                    + ",\"hash_algorithm\":" + quote(hd.hashAlgorithm)
+                    + ",\"salt\":" + quote(IOUtils.bytesToHex(hd.salt))
+                    + ",\"digest\":" + quote(IOUtils.bytesToHex(hd.digest))
+                    + ",\"flags\":" + hd.flags + "}";
+        } else if (desc instanceof HashTreeDescriptor htd) {
+            return "{\"type\":\"hashtree\",\"partition_name\":" + quote(htd.partitionName)
+                    + ",\"image_size\":" + htd.imageSize
+                    + ",\"tree_offset\":" + htd.treeOffset
+                    + ",\"tree_size\":" + htd.treeSize
+                    + ",\"data_block_size\":" + htd.dataBlockSize
+                    + ",\"hash_block_size\":" + htd.hashBlockSize
+                    + ",\"hash_algorithm\":" + quote(htd.hashAlgorithm)
+                    + ",\"salt\":" + quote(IOUtils.bytesToHex(htd.salt))
+                    + ",\"root_digest\":" + quote(IOUtils.bytesToHex(htd.rootDigest))
+                    + ",\"flags\":" + htd.flags + "}";
+        } else if (desc instanceof ChainPartitionDescriptor cpd) {
+            return "{\"type\":\"chain_partition\",\"partition_name\":" + quote(cpd.partitionName)
+                    + ",\"rollback_index_location\":" + cpd.rollbackIndexLocation
+                    + ",\"public_key_sha256\":" + quote(IOUtils.sha256ToHex(cpd.publicKey.toByteArray()))
+                    + ",\"flags\":" + cpd.flags + "}";
+        } else if (desc instanceof PropertyDescriptor pd) {
+            return "{\"type\":\"property\",\"name\":" + quote(pd.name) + ",\"value\":" + quote(pd.value) + "}";
+        } else if (desc instanceof KernelCmdlineDescriptor kcd) {
+            return "{\"type\":\"kernel_cmdline\",\"flags\":" + kcd.flags
+                    + ",\"kernel_cmdline\":" + quote(kcd.kernelCmdline) + "}";
+        }
+        return "{\"type\":\"unknown\",\"tag\":" + desc.tag + "}";
+    }
+
+    static String quote(String s) {
+        var sb = new StringBuilder(s.length() + 2).append('"');
+        for (var i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
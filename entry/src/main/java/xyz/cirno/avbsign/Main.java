@@ -2,22 +2,50 @@ package xyz.cirno.avbsign;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import xyz.cirno.avb.AvbAlgorithmType;
 import xyz.cirno.avb.AvbKeyPair;
+import xyz.cirno.avb.AvbSigner;
+import xyz.cirno.avb.HashFooterWriter;
 import xyz.cirno.avb.PartitionProvider;
+import xyz.cirno.avb.SigningHelperSigner;
+import xyz.cirno.avb.provider.GzipPartitionProvider;
+import xyz.cirno.avb.provider.HttpPartitionProvider;
+import xyz.cirno.avb.provider.ZipPartitionProvider;
 import xyz.cirno.avb.rebuild.AvbRebuilder;
+import xyz.cirno.avb.rebuild.RebuildExecutor;
+import xyz.cirno.avb.util.BlockDevices;
 import xyz.cirno.avb.util.IOUtils;
 import xyz.cirno.avb.util.Logger;
 import xyz.cirno.avb.verify.AvbVerifier;
+import xyz.cirno.avb.verify.AvbVerifyResult;
+import xyz.cirno.avb.verify.CancellationToken;
+import xyz.cirno.avb.verify.DigestCache;
+import xyz.cirno.avb.verify.HashCheckpoints;
+import xyz.cirno.avb.verify.IoScheduler;
+import xyz.cirno.avb.verify.SlotComparison;
+import xyz.cirno.avb.verify.VbmetaImageCache;
 
 public class Main {
+    // shared by all commands, including concurrent daemon clients, so the per-device read limit holds globally
+    private static final IoScheduler IO_SCHEDULER = new IoScheduler(1, Runtime.getRuntime().availableProcessors());
 
     private static int runCommand(String... args) {
         try {
@@ -60,116 +88,404 @@ public class Main {
         }
     }
 
-    public static byte[] hexStringToByteArray(String hexString) {
-        Objects.requireNonNull(hexString);
-        if (hexString.length() % 2 != 0) {
-            throw new IllegalArgumentException("Hex string must have an even number of characters.");
-        }
-
-        int len = hexString.length();
-        byte[] data = new byte[len / 2];
-
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) Integer.parseInt(hexString.substring(i, i + 2), 16);
-        }
-        return data;
-    }
-
     public static void main(String[] args) {
+        int code;
         try {
-            main2(args);
+            var forwarded = args.length > 0 ? Daemon.forward(socketPathOf(args), args, System.out) : null;
+            code = forwarded != null ? forwarded : run(args, System.out, new SessionCache());
         } catch (Throwable e) {
             e.printStackTrace();
-            System.exit(1);
+            code = 1;
+        }
+        if (code != 0) {
+            System.exit(code);
+        }
+    }
+
+    private static Path socketPathOf(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--socket".equals(args[i])) {
+                return Paths.get(args[i + 1]);
+            }
         }
+        return DaemonProtocol.defaultSocketPath();
     }
 
-    public static void main2(String[] args) {
-        if (args.length < 2) {
-            System.out.println("Usage:");
-            System.out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main check <partition_pattern>");
-            System.out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main fix <partition_pattern> <keys_dir>");
-            System.out.println("    partition_pattern: pattern for partition images, use {} as placeholder for partition name");
-            System.out.println("                       e.g. `/dev/block/by-name/{}_a`, `{}.img`");
-            System.out.println("    keys_dir:          directory containing private keys in PEM format");
-            System.exit(1);
+    private static void printUsage(PrintStream out) {
+        out.println("Usage:");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main check <partition_pattern> [--mode full|quick] [--hashtree-samples <n>] [--seed <n>] [--checkpoint-dir <dir>] [--timeout-ms <n>]");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main fix <partition_pattern> <keys_dir> [--signing-helper <program> --signing-key <key>]");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main check-slots <partition_pattern> [--slots <a>,<b>]");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main info <image_or_dir> [--format json|text] [--property <name>[,<name>...]]");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main add-hash-footer <image> --partition-name <name> [--partition-size <n>]");
+        out.println("                        [--algorithm <SHA256_RSA4096...> --key <key> | --signing-helper <program> --signing-key <key>]");
+        out.println("                        [--salt <hex>] [--hash-algorithm <sha256>] [--rollback-index <n>] [--rollback-index-location <n>]");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main make-vbmeta <manifest>");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main watch <partition_pattern> [--debounce-ms <n>]");
+        out.println("  app_process -cp avbsign.apk / xyz.cirno.avbsign.Main daemon [--threads <n>]");
+        out.println("    partition_pattern: pattern for partition images, use {} as placeholder for partition name");
+        out.println("                       e.g. `/dev/block/by-name/{}_a`, `{}.img`, `{}.img.gz`,");
+        out.println("                       `target_files.zip!IMAGES/{}.img` for entries of a ZIP archive,");
+        out.println("                       `https://host/builds/1234/{}.img` for images on an HTTP server");
+        out.println("    keys_dir:          directory containing private keys in PEM format");
+        out.println("    manifest:          sections of avbtool make_vbmeta_image options, one per vbmeta image, see README");
+        out.println("    --format:           info output, text for an image and JSON lines, one per file, for a directory by default");
+        out.println("                        info exits with 1 for an image without AVB metadata, but for a directory only");
+        out.println("                        if a file could not be read; files without AVB metadata are reported with exit 0");
+        out.println("    --property:         info only prints these properties, e.g. com.android.build.system.fingerprint");
+        out.println("    --slots:            slot suffixes for check-slots, defaults to _a,_b; they replace {slot} in the");
+        out.println("                        pattern, or are appended to the partition name, e.g. `/dev/block/by-name/{}`");
+        out.println("    --mode:             quick only checks signatures, chain keys and footers, without hashing");
+        out.println("                        partition contents");
+        out.println("    --hashtree-samples: spot-check this many random blocks of each hash tree partition");
+        out.println("    --seed:             seed for choosing hash tree blocks, defaults to 0");
+        out.println("    --timeout-ms:       stop verifying after this long and report unfinished partitions as NotVerified;");
+        out.println("                        fix refuses to run on such a partial result");
+        out.println("    --debounce-ms:      watch re-verifies once changed images were not written for this long, defaults to 1000");
+        out.println("    --checkpoint-dir:   keep SHA-256 checkpoints of hashed partitions in <dir> and rehash only from the");
+        out.println("                        first changed MiB; changes are detected with xxHash64, which is not collision resistant");
+        out.println("    --signing-helper:   sign vbmeta images whose key is --signing-key with an avbtool-compatible signing helper");
+        out.println("    --signing-key:      public key (PEM or avbtool extract_public_key output) passed to the signing helper");
+        out.println("    --signing-helper-processes: number of signing helpers run concurrently, defaults to 4");
+        out.println("    --socket:           daemon socket, check/fix/info are forwarded to a running daemon");
+        out.println("    --threads:          number of commands the daemon runs concurrently, defaults to 2");
+    }
+
+    static int run(String[] args, PrintStream out, SessionCache cache) throws IOException {
+        var options = new HashMap<String, String>();
+        var positional = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        var command = positional.isEmpty() ? "" : positional.get(0);
+        if ("daemon".equals(command)) {
+            var threads = Integer.parseInt(options.getOrDefault("threads", "2"));
+            new Daemon(socketPathOf(args), threads).serve();
+            return 0;
+        }
+        if (positional.size() < 2 || ("fix".equals(command) && positional.size() < 3)) {
+            printUsage(out);
+            return 1;
         }
-        var command = args[0];
-        var pattern = args[1];
+        var pattern = positional.get(1);
         if ("check".equals(command)) {
-            check(pattern);
+            return check(pattern, options, out, cache);
+        } else if ("check-slots".equals(command)) {
+            return checkSlots(pattern, options, out, cache);
         } else if ("fix".equals(command)) {
-            var keysdir = args[2];
-            fix(pattern, keysdir);
+            var keysdir = positional.get(2);
+            return fix(pattern, keysdir, options, out, cache);
+        } else if ("info".equals(command)) {
+            return InfoCommand.run(pattern, options, out);
+        } else if ("watch".equals(command)) {
+            return WatchCommand.run(pattern, options, out);
+        } else if ("add-hash-footer".equals(command)) {
+            return addHashFooter(pattern, options, out);
+        } else if ("make-vbmeta".equals(command)) {
+            return MakeVbmetaCommand.run(pattern, out);
         }
+        printUsage(out);
+        return 1;
     }
 
-    private static void fix(String pattern, String keysdir) {
+    private static int fix(String pattern, String keysdir, Map<String, String> options, PrintStream out, SessionCache cache) throws IOException {
+        if (isReadOnlyPattern(pattern)) {
+            Logger.error("fix cannot write into compressed, archived or remote images, extract or download them first");
+            return 1;
+        }
+        var keyDirectory = cache.openKeyDirectory(keysdir);
+        var signingHelper = options.get("signing-helper");
+        if (keyDirectory.isEmpty() && signingHelper == null) {
+            Logger.error("No keys found in " + keysdir);
+            return 1;
+        }
+        if (signingHelper != null && !options.containsKey("signing-key")) {
+            Logger.error("--signing-helper requires --signing-key");
+            return 1;
+        }
+        ExecutorService helperPool = null;
+        ExecutorService rebuildPool = null;
+        var digests = cache.acquire(pattern);
         try {
-            var keyPairs = new ArrayList<AvbKeyPair>();
-            try (var iter = Files.list(Paths.get(keysdir))) {
-                iter.forEach(f -> {
-                    var keypair = AvbKeyPair.fromPrivateKeyPem(f);
-                    if (keypair != null) {
-                        Logger.info("Loaded key with public key hash " + IOUtils.sha256ToHex(keypair.publicKey.toByteArray()));
-                        keyPairs.add(keypair);
-                    }
-                });
-            }
-            if (keyPairs.isEmpty()) {
-                Logger.error("No keys loaded from " + keysdir);
-                System.exit(1);
-            }
-            var verifier = newAvbVerifier(pattern);
+            var verifier = newAvbVerifier(pattern, options, cache);
+            verifier.setDigestCache(digests);
             var result = verifier.recursiveVerify("vbmeta");
+            if (!result.isComplete()) {
+                for (var issue : result.issues) {
+                    out.println("Issue: " + issue);
+                }
+                Logger.error("Verification did not finish within --timeout-ms, not fixing anything");
+                return 1;
+            }
             if (result.hasIssues()) {
-                System.out.println("Verification failed with issues:");
+                out.println("Verification failed with issues:");
                 for (var issue : result.issues) {
-                    System.out.println("Issue: " + issue);
+                    out.println("Issue: " + issue);
                 }
+                printBootImageComponents(result, out);
                 var rebuilder = new AvbRebuilder(result);
-                for (var keypair : keyPairs) {
-                    rebuilder.addKeyPair(keypair);
+                rebuilder.addKeyDirectory(keyDirectory);
+                if (signingHelper != null) {
+                    var keyPath = options.get("signing-key");
+                    helperPool = Executors.newFixedThreadPool(Integer.parseInt(options.getOrDefault("signing-helper-processes", "4")));
+                    rebuilder.addSigner(new SigningHelperSigner(List.of(signingHelper), keyPath,
+                            SigningHelperSigner.readPublicKey(Paths.get(keyPath)), Logger.inheritOutput(helperPool)));
                 }
-                var parts = rebuilder.rebuildWithTrustedData();
-                for (var part : parts) {
+                var plan = rebuilder.plan();
+                out.println("Rebuild plan:");
+                out.print(plan);
+                rebuildPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                var rebuilt = new RebuildExecutor(Logger.inheritOutput(rebuildPool)).execute(rebuilder, part -> {
                     Logger.info("Rebuilding partition " + part.partitionName());
                     try (var f = FileChannel.open(Paths.get(pattern.replace("{}", part.partitionName())), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
                         part.rebuildInplace(f);
-                    } catch (Exception e) {
-                        Logger.error("Failed to write rebuilt partition " + part.partitionName(), e);
-                        e.printStackTrace();
                     }
+                    cache.wrote(pattern, part.partitionName());
+                });
+                for (var failure : rebuilt.failed().entrySet()) {
+                    Logger.error("Failed to write rebuilt partition " + failure.getKey() + ": " + failure.getValue());
+                    failure.getValue().printStackTrace(out);
+                }
+                if (!rebuilt.isEmpty()) {
+                    return verifyWritten(pattern, digests, options, out, cache);
                 }
-
             } else {
-                System.out.println("Verification succeeded with no issues.");
+                out.println("Verification succeeded with no issues.");
+            }
+            return 0;
+        } finally {
+            if (helperPool != null) {
+                helperPool.shutdown();
+            }
+            if (rebuildPool != null) {
+                rebuildPool.shutdown();
+            }
+            cache.release(pattern);
+        }
+    }
+
+    /**
+     * Re-parses footers and vbmeta images after a fix. Payloads are not touched by
+     * {@link xyz.cirno.avb.rebuild.VbmetaRebuildRequest#rebuildInplace}, so their digests are taken from the
+     * first pass and only signatures, chain keys and descriptors are checked again.
+     */
+    private static int verifyWritten(String pattern, DigestCache digests, Map<String, String> options, PrintStream out,
+                                     SessionCache cache) throws IOException {
+        Logger.info("Verifying rebuilt partitions");
+        var verifier = newAvbVerifier(pattern, options, cache);
+        verifier.setDigestCache(digests);
+        var result = verifier.recursiveVerify("vbmeta");
+        if (result.hasIssues()) {
+            for (var issue : result.issues) {
+                out.println("Issue after rebuild: " + issue);
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            Logger.error("Rebuilt partitions failed verification");
+            return 1;
         }
+        out.println("Rebuilt partitions verified successfully.");
+        return 0;
     }
 
-    private static void check(String pattern) {
-        var verifier = newAvbVerifier(pattern);
+    private static int check(String pattern, Map<String, String> options, PrintStream out, SessionCache cache) throws IOException {
+        var digests = cache.acquire(pattern);
         try {
+            var verifier = newAvbVerifier(pattern, options, cache);
+            verifier.setDigestCache(digests);
+            var samples = Integer.parseInt(options.getOrDefault("hashtree-samples", "0"));
+            var seed = Long.parseLong(options.getOrDefault("seed", "0"));
+            verifier.setHashTreeSampling(samples, seed);
+            var mode = options.getOrDefault("mode", "full");
+            if (!mode.equals("full") && !mode.equals("quick")) {
+                Logger.error("Unknown --mode " + mode + ", expected full or quick");
+                return 1;
+            }
+            verifier.setStructureOnly(mode.equals("quick"));
             var result = verifier.recursiveVerify("vbmeta");
             if (result.hasIssues()) {
-                System.out.println("Verification failed with issues:");
+                out.println(result.isComplete() ? "Verification failed with issues:"
+                        : "Verification did not finish within --timeout-ms, partial result:");
                 for (var issue : result.issues) {
-                    System.out.println("Issue: " + issue);
+                    out.println("Issue: " + issue);
                 }
+                printBootImageComponents(result, out);
+            } else if (mode.equals("quick")) {
+                out.println("Verification succeeded with no issues, partition contents were not hashed.");
             } else {
-                System.out.println("Verification succeeded with no issues.");
+                out.println("Verification succeeded with no issues.");
             }
+            return 0;
+        } finally {
+            cache.release(pattern);
+        }
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Verifies two slots concurrently and lists the differences between them. Each slot logs to its own buffer,
+     * printed after both finished, so the output stays readable.
+     */
+    private static int checkSlots(String pattern, Map<String, String> options, PrintStream out, SessionCache cache) throws IOException {
+        var slots = options.getOrDefault("slots", "_a,_b").split(",");
+        if (slots.length != 2 || slots[0].equals(slots[1])) {
+            Logger.error("--slots takes two different comma separated slot suffixes");
+            return 1;
+        }
+        var patterns = new String[2];
+        for (int i = 0; i < 2; i++) {
+            patterns[i] = pattern.contains("{slot}") ? pattern.replace("{slot}", slots[i]) : pattern.replace("{}", "{}" + slots[i]);
+        }
+        var samples = Integer.parseInt(options.getOrDefault("hashtree-samples", "0"));
+        var seed = Long.parseLong(options.getOrDefault("seed", "0"));
+        var images = new VbmetaImageCache();
+        // fixed lock order, a concurrent check-slots for the same device must not deadlock
+        var lockOrder = patterns[0].compareTo(patterns[1]) < 0 ? new int[]{0, 1} : new int[]{1, 0};
+        var digests = new DigestCache[2];
+        for (var i : lockOrder) {
+            digests[i] = cache.acquire(patterns[i]);
+        }
+        var pool = Executors.newFixedThreadPool(2);
+        try {
+            var logs = new ByteArrayOutputStream[2];
+            var futures = new ArrayList<CompletableFuture<AvbVerifyResult>>();
+            for (int i = 0; i < 2; i++) {
+                var slot = i;
+                logs[slot] = new ByteArrayOutputStream();
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    Logger.setThreadOutput(new PrintStream(logs[slot], true, StandardCharsets.UTF_8));
+                    try {
+                        var verifier = newAvbVerifier(patterns[slot], options, cache);
+                        verifier.setDigestCache(digests[slot]);
+                        verifier.setVbmetaImageCache(images);
+                        verifier.setHashTreeSampling(samples, seed);
+                        return verifier.recursiveVerify("vbmeta");
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        Logger.setThreadOutput(null);
+                    }
+                }, pool));
+            }
+            var results = new AvbVerifyResult[2];
+            for (int i = 0; i < 2; i++) {
+                try {
+                    results[i] = futures.get(i).join();
+                } catch (CompletionException e) {
+                    out.print(logs[i].toString(StandardCharsets.UTF_8));
+                    Logger.error("Verification of slot " + slots[i] + " failed: " + e.getCause());
+                    return 1;
+                }
+            }
+            for (int i = 0; i < 2; i++) {
+                out.println("Slot " + slots[i] + ":");
+                out.print(logs[i].toString(StandardCharsets.UTF_8));
+                if (results[i].hasIssues()) {
+                    out.println("Verification failed with issues:");
+                    for (var issue : results[i].issues) {
+                        out.println("Issue: " + issue);
+                    }
+                    printBootImageComponents(results[i], out);
+                } else {
+                    out.println("Verification succeeded with no issues.");
+                }
+            }
+            var differences = SlotComparison.compare(results[0], digests[0], results[1], digests[1]);
+            if (differences.isEmpty()) {
+                out.println("Slots " + slots[0] + " and " + slots[1] + " have identical vbmeta images.");
+            } else {
+                out.println("Differences between slots " + slots[0] + " and " + slots[1] + ":");
+                for (var difference : differences) {
+                    out.println("  " + difference);
+                }
+            }
+            return 0;
+        } finally {
+            pool.shutdown();
+            for (int i = 1; i >= 0; i--) {
+                cache.release(patterns[lockOrder[i]]);
+            }
         }
     }
 
-    private static AvbVerifier newAvbVerifier(String pattern) {
-        var prov = new PartitionProvider() {
+    /**
+     * Same arguments and result as {@code avbtool add_hash_footer}, written in place without copying the image.
+     */
+    private static int addHashFooter(String image, Map<String, String> options, PrintStream out) throws IOException {
+        var partitionName = options.get("partition-name");
+        if (partitionName == null) {
+            Logger.error("add-hash-footer requires --partition-name");
+            return 1;
+        }
+        var writer = new HashFooterWriter(partitionName);
+        writer.partitionSize = Long.parseLong(options.getOrDefault("partition-size", "0"));
+        writer.hashAlgorithm = options.getOrDefault("hash-algorithm", "sha256");
+        writer.rollbackIndex = Long.parseLong(options.getOrDefault("rollback-index", "0"));
+        writer.rollbackIndexLocation = Integer.parseInt(options.getOrDefault("rollback-index-location", "0"));
+        if (options.containsKey("salt")) {
+            writer.salt = IOUtils.hexToBytes(options.get("salt"));
+        }
+        AvbSigner signer = null;
+        if (options.containsKey("key") || options.containsKey("signing-helper")) {
+            if (!options.containsKey("algorithm")) {
+                Logger.error("signing requires --algorithm");
+                return 1;
+            }
+            writer.algorithmType = AvbAlgorithmType.valueOf(options.get("algorithm"));
+            if (options.containsKey("signing-helper")) {
+                var keyPath = options.get("signing-key");
+                if (keyPath == null) {
+                    Logger.error("--signing-helper requires --signing-key");
+                    return 1;
+                }
+                signer = new SigningHelperSigner(List.of(options.get("signing-helper")), keyPath,
+                        SigningHelperSigner.readPublicKey(Paths.get(keyPath)), Runnable::run);
+            } else {
+                signer = AvbKeyPair.fromPrivateKeyPem(Paths.get(options.get("key")));
+                if (signer == null) {
+                    Logger.error("Failed to load key " + options.get("key"));
+                    return 1;
+                }
+            }
+        }
+        try (var ch = FileChannel.open(Paths.get(image), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var footer = writer.writeTo(ch, signer);
+            out.printf("Added hash footer to %s: original image size %d, vbmeta at %d (%d bytes), partition size %d%n",
+                    image, footer.originalImageSize, footer.vbmetaOffset, footer.vbmetaSize, ch.size());
+        } catch (IllegalArgumentException e) {
+            Logger.error(e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+
+    static void printBootImageComponents(AvbVerifyResult result, PrintStream out) {
+        for (var entry : result.bootImageComponents.entrySet()) {
+            out.println("Components of boot image " + entry.getKey() + ":");
+            for (var component : entry.getValue()) {
+                out.println("  " + component);
+            }
+        }
+    }
+
+    // images that are read through a decoding provider and cannot be fixed in place
+    private static boolean isReadOnlyPattern(String pattern) {
+        return pattern.endsWith(".gz") || ZipPartitionProvider.isZipPattern(pattern)
+                || HttpPartitionProvider.isHttpPattern(pattern);
+    }
+
+    private static PartitionProvider newPartitionProvider(String pattern) {
+        if (HttpPartitionProvider.isHttpPattern(pattern)) {
+            return new HttpPartitionProvider(pattern);
+        }
+        if (ZipPartitionProvider.isZipPattern(pattern)) {
+            return ZipPartitionProvider.ofPattern(pattern);
+        }
+        if (pattern.endsWith(".gz")) {
+            return new GzipPartitionProvider(pattern);
+        }
+        return new PartitionProvider() {
             @Override
             public SeekableByteChannel openPartition(String name) {
                 try {
@@ -179,8 +495,37 @@ public class Main {
                     throw new RuntimeException(e);
                 }
             }
+
+            @Override
+            public Object deviceOf(String name) {
+                return BlockDevices.deviceOf(Paths.get(pattern.replace("{}", name)));
+            }
         };
-        var verifier = new AvbVerifier(prov);
+    }
+
+    static AvbVerifier newAvbVerifier(String pattern, Map<String, String> options) {
+        return newAvbVerifier(pattern, newPartitionProvider(pattern), options);
+    }
+
+    /**
+     * A verifier whose digests {@code cache} may keep for later commands, see {@link SessionCache#stampBeforeRead}.
+     */
+    private static AvbVerifier newAvbVerifier(String pattern, Map<String, String> options, SessionCache cache) {
+        return newAvbVerifier(pattern, cache.stampBeforeRead(pattern, newPartitionProvider(pattern)), options);
+    }
+
+    private static AvbVerifier newAvbVerifier(String pattern, PartitionProvider provider, Map<String, String> options) {
+        var verifier = new AvbVerifier(provider);
+        verifier.setIoScheduler(IO_SCHEDULER);
+        if (options.containsKey("timeout-ms")) {
+            verifier.setCancellationToken(CancellationToken.withTimeout(Duration.ofMillis(Long.parseLong(options.get("timeout-ms")))));
+        }
+        var checkpointDir = options.get("checkpoint-dir");
+        if (checkpointDir != null) {
+            // partitions of different devices or slots share names, keep their checkpoints apart
+            var sub = IOUtils.sha256ToHex(pattern.getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+            verifier.setHashCheckpoints(new HashCheckpoints(Paths.get(checkpointDir, sub)));
+        }
         return verifier;
     }
 }
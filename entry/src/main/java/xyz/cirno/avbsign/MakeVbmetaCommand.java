@@ -0,0 +1,241 @@
+package xyz.cirno.avbsign;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import xyz.cirno.avb.AvbAlgorithmType;
+import xyz.cirno.avb.AvbKeyPair;
+import xyz.cirno.avb.AvbPublicKey;
+import xyz.cirno.avb.AvbSigner;
+import xyz.cirno.avb.ChainPartitionDescriptor;
+import xyz.cirno.avb.InvalidAvbDataException;
+import xyz.cirno.avb.KernelCmdlineDescriptor;
+import xyz.cirno.avb.ParsedVerifiedBootMetaImage;
+import xyz.cirno.avb.PropertyDescriptor;
+import xyz.cirno.avb.SigningHelperSigner;
+import xyz.cirno.avb.VbmetaImageBuilder;
+import xyz.cirno.avb.util.Logger;
+
+/**
+ * Builds every vbmeta image described by a manifest in one process, each like {@code avbtool make_vbmeta_image}.
+ * <p>
+ * The manifest has one section per image, keys are the avbtool options with underscores and may repeat:
+ * <pre>
+ * [vbmeta_system]
+ * output = out/vbmeta_system.img
+ * algorithm = SHA256_RSA4096
+ * key = keys/system.pem
+ * rollback_index_location = 1
+ * include_descriptors_from_image = out/system.img
+ * include_descriptors_from_image = out/product.img
+ *
+ * [vbmeta]
+ * algorithm = SHA256_RSA4096
+ * key = keys/root.pem
+ * chain_partition = vbmeta_system:1:keys/system.avbpubkey
+ * include_descriptors_from_image = out/boot.img
+ * </pre>
+ * Relative paths are relative to the manifest, {@code output} defaults to the section name with {@code .img}.
+ * Every included image and key is read once, concurrently, even if several sections use it.
+ */
+final class MakeVbmetaCommand {
+    private static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final Path baseDirectory;
+    private final ExecutorService executor;
+    private final Map<Path, CompletableFuture<ParsedVerifiedBootMetaImage>> images = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<AvbKeyPair>> keyPairs = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<AvbPublicKey>> publicKeys = new ConcurrentHashMap<>();
+
+    private MakeVbmetaCommand(Path baseDirectory, ExecutorService executor) {
+        this.baseDirectory = baseDirectory;
+        this.executor = executor;
+    }
+
+    static int run(String manifest, PrintStream out) throws IOException {
+        var manifestPath = Path.of(manifest).toAbsolutePath();
+        Map<String, List<Map.Entry<String, String>>> sections;
+        try {
+            sections = parseManifest(Files.readAllLines(manifestPath));
+        } catch (IllegalArgumentException e) {
+            Logger.error(manifest + ": " + e.getMessage());
+            return 1;
+        }
+        var executor = Executors.newFixedThreadPool(PARALLELISM);
+        try {
+            var command = new MakeVbmetaCommand(manifestPath.getParent(), executor);
+            var outputs = new LinkedHashMap<String, CompletableFuture<Path>>();
+            for (var section : sections.entrySet()) {
+                outputs.put(section.getKey(), command.build(section.getKey(), section.getValue()));
+            }
+            var result = 0;
+            for (var entry : outputs.entrySet()) {
+                try {
+                    out.println("Wrote " + entry.getKey() + " to " + entry.getValue().join());
+                } catch (CompletionException e) {
+                    var cause = e.getCause();
+                    Logger.error("Failed to build " + entry.getKey() + ": "
+                            + (cause instanceof UncheckedIOException io ? io.getCause() : cause).getMessage());
+                    result = 1;
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static Map<String, List<Map.Entry<String, String>>> parseManifest(List<String> lines) {
+        var sections = new LinkedHashMap<String, List<Map.Entry<String, String>>>();
+        List<Map.Entry<String, String>> current = null;
+        for (var i = 0; i < lines.size(); i++) {
+            var line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith(";")) {
+                continue;
+            }
+            if (line.startsWith("[") && line.endsWith("]")) {
+                var name = line.substring(1, line.length() - 1).strip();
+                if (name.isEmpty() || sections.containsKey(name)) {
+                    throw new IllegalArgumentException("line " + (i + 1) + ": empty or duplicate section [" + name + "]");
+                }
+                current = new ArrayList<>();
+                sections.put(name, current);
+                continue;
+            }
+            var eq = line.indexOf('=');
+            if (eq < 0 || current == null) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": expected key = value inside a section");
+            }
+            current.add(Map.entry(line.substring(0, eq).strip(), line.substring(eq + 1).strip()));
+        }
+        return sections;
+    }
+
+    private CompletableFuture<Path> build(String name, List<Map.Entry<String, String>> entries) {
+        var builder = new VbmetaImageBuilder();
+        var output = baseDirectory.resolve(name + ".img");
+        Path keyPath = null;
+        String signingHelper = null;
+        var includes = new ArrayList<CompletableFuture<ParsedVerifiedBootMetaImage>>();
+        var chains = new ArrayList<CompletableFuture<ChainPartitionDescriptor>>();
+        try {
+            for (var entry : entries) {
+                var value = entry.getValue();
+                switch (entry.getKey()) {
+                    case "output" -> output = baseDirectory.resolve(value);
+                    case "algorithm" -> builder.algorithmType = AvbAlgorithmType.valueOf(value);
+                    case "key" -> keyPath = baseDirectory.resolve(value);
+                    case "signing_helper" -> signingHelper = value;
+                    case "rollback_index" -> builder.rollbackIndex = Long.parseLong(value);
+                    case "rollback_index_location" -> builder.rollbackIndexLocation = Integer.parseInt(value);
+                    case "flags" -> builder.flags = Integer.decode(value);
+                    case "padding_size" -> builder.paddingSize = Integer.parseInt(value);
+                    case "append_to_release_string" -> builder.appendToReleaseString = value;
+                    case "prop" -> {
+                        var colon = value.indexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("prop must be name:value");
+                        }
+                        builder.properties.add(new PropertyDescriptor(value.substring(0, colon), value.substring(colon + 1)));
+                    }
+                    case "kernel_cmdline" -> builder.kernelCmdlines.add(new KernelCmdlineDescriptor(0, value));
+                    case "chain_partition" -> chains.add(chainPartition(value, 0));
+                    case "chain_partition_do_not_use_ab" ->
+                            chains.add(chainPartition(value, ChainPartitionDescriptor.FLAG_DO_NOT_USE_AB));
+                    case "include_descriptors_from_image" -> includes.add(image(baseDirectory.resolve(value)));
+                    default -> throw new IllegalArgumentException("unknown key " + entry.getKey());
+                }
+            }
+            if ((keyPath == null) != (builder.algorithmType == AvbAlgorithmType.NONE)) {
+                throw new IllegalArgumentException("key is required exactly when algorithm is not NONE");
+            }
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        var signer = keyPath == null ? CompletableFuture.<AvbSigner>completedFuture(null)
+                : signingHelper == null ? keyPair(keyPath)
+                : helperSigner(signingHelper, keyPath);
+        var dependencies = new ArrayList<CompletableFuture<?>>(includes);
+        dependencies.addAll(chains);
+        dependencies.add(signer);
+        var finalOutput = output;
+        return CompletableFuture.allOf(dependencies.toArray(CompletableFuture[]::new))
+                .thenComposeAsync(unused -> {
+                    chains.forEach(c -> builder.chainPartitions.add(c.join()));
+                    includes.forEach(i -> builder.includedImages.add(i.join()));
+                    return builder.build(signer.join());
+                }, executor)
+                .thenApplyAsync(blob -> {
+                    try {
+                        Files.write(finalOutput, blob);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return finalOutput;
+                }, executor);
+    }
+
+    // name:rollback_index_location:public_key, as for avbtool --chain_partition
+    private CompletableFuture<ChainPartitionDescriptor> chainPartition(String value, int flags) {
+        var fields = value.split(":", 3);
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("chain partition must be name:rollback_index_location:key");
+        }
+        var location = Integer.parseInt(fields[1]);
+        return publicKey(baseDirectory.resolve(fields[2]))
+                .thenApply(key -> new ChainPartitionDescriptor(location, fields[0], key, flags));
+    }
+
+    private CompletableFuture<ParsedVerifiedBootMetaImage> image(Path path) {
+        return images.computeIfAbsent(path.normalize(), p -> CompletableFuture.supplyAsync(() -> {
+            try (var ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                var image = ParsedVerifiedBootMetaImage.parseFromPartition(ch);
+                if (image == null) {
+                    throw new InvalidAvbDataException("no vbmeta image or footer in " + p);
+                }
+                return image;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor));
+    }
+
+    private CompletableFuture<AvbKeyPair> keyPair(Path path) {
+        return keyPairs.computeIfAbsent(path.normalize(), p -> CompletableFuture.supplyAsync(() -> {
+            var keyPair = AvbKeyPair.fromPrivateKeyPem(p);
+            if (keyPair == null) {
+                throw new InvalidAvbDataException("failed to load private key " + p);
+            }
+            return keyPair;
+        }, executor));
+    }
+
+    private CompletableFuture<AvbPublicKey> publicKey(Path path) {
+        return publicKeys.computeIfAbsent(path.normalize(), p -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return SigningHelperSigner.readPublicKey(p);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor));
+    }
+
+    private CompletableFuture<AvbSigner> helperSigner(String helper, Path keyPath) {
+        return publicKey(keyPath).thenApply(key ->
+                new SigningHelperSigner(List.of(helper), keyPath.toString(), key, executor));
+    }
+}
@@ -0,0 +1,145 @@
+package xyz.cirno.avbsign;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+import xyz.cirno.avb.KeyDirectory;
+import xyz.cirno.avb.PartitionProvider;
+import xyz.cirno.avb.verify.DigestCache;
+
+/**
+ * State that survives between commands of a {@link Daemon}. A one-shot CLI run uses a fresh instance.
+ * <p>
+ * Cached entries are validated by file size and mtime. A partition is stamped before it is first read, so a
+ * partition rewritten while a command hashes it does not match its stamp in the next command. Digests of
+ * partitions that are not regular files (block devices) are never kept across commands since their mtime does not
+ * track writes.
+ */
+final class SessionCache {
+    private final Map<String, OpenedKeyDirectory> keyDirectories = new HashMap<>();
+    private final Map<String, PatternState> patterns = new HashMap<>();
+
+    /**
+     * @return the index of {@code keysdir}, re-validated only if the directory contents changed
+     */
+    synchronized KeyDirectory openKeyDirectory(String keysdir) throws IOException {
+        var listing = new HashMap<Path, Object>();
+        try (var iter = Files.list(Paths.get(keysdir))) {
+            for (var f : (Iterable<Path>) iter::iterator) {
+                if (!f.getFileName().toString().startsWith(KeyDirectory.INDEX_FILE_NAME)) {
+                    listing.put(f, stampOf(f));
+                }
+            }
+        }
+        var opened = keyDirectories.get(keysdir);
+        if (opened != null && opened.listing.equals(listing)) {
+            return opened.directory;
+        }
+        var directory = KeyDirectory.open(Paths.get(keysdir));
+        keyDirectories.put(keysdir, new OpenedKeyDirectory(listing, directory));
+        return directory;
+    }
+
+    /**
+     * Locks {@code pattern} against concurrent commands and returns its digest cache with stale entries dropped.
+     * Read partitions through {@link #stampBeforeRead} and call {@link #release} when done.
+     */
+    DigestCache acquire(String pattern) {
+        var state = stateOf(pattern);
+        state.lock.lock();
+        synchronized (state.stamps) {
+            for (var name : state.digests.partitionNames()) {
+                var stamp = stampOf(pathOf(pattern, name));
+                if (stamp == null || !stamp.equals(state.stamps.get(name))) {
+                    state.digests.invalidate(name);
+                }
+            }
+            // the stamps of digests kept from earlier commands still hold, the others are taken on first open
+            state.stamps.keySet().retainAll(state.digests.partitionNames());
+        }
+        return state.digests;
+    }
+
+    /**
+     * @return {@code provider} stamping each partition of {@code pattern} before it is first opened
+     */
+    PartitionProvider stampBeforeRead(String pattern, PartitionProvider provider) {
+        var state = stateOf(pattern);
+        return new PartitionProvider() {
+            @Override
+            public SeekableByteChannel openPartition(String name) {
+                synchronized (state.stamps) {
+                    if (!state.stamps.containsKey(name)) {
+                        state.stamps.put(name, stampOf(pathOf(pattern, name)));
+                    }
+                }
+                return provider.openPartition(name);
+            }
+
+            @Override
+            public Object deviceOf(String name) {
+                return provider.deviceOf(name);
+            }
+        };
+    }
+
+    /**
+     * Stamps partition {@code name} again after the command itself wrote it, e.g. the footer written by fix.
+     * Its digests must still describe the new content.
+     */
+    void wrote(String pattern, String name) {
+        var state = stateOf(pattern);
+        synchronized (state.stamps) {
+            state.stamps.put(name, stampOf(pathOf(pattern, name)));
+        }
+    }
+
+    /**
+     * Keeps the stamps of hashed partitions so that their digests can be reused by the next command.
+     */
+    void release(String pattern) {
+        var state = stateOf(pattern);
+        synchronized (state.stamps) {
+            state.stamps.keySet().retainAll(state.digests.partitionNames());
+        }
+        state.lock.unlock();
+    }
+
+    private synchronized PatternState stateOf(String pattern) {
+        return patterns.computeIfAbsent(pattern, k -> new PatternState());
+    }
+
+    private static Path pathOf(String pattern, String name) {
+        return Paths.get(pattern.replace("{}", name));
+    }
+
+    private static Object stampOf(Path path) {
+        try {
+            var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return List.of(attrs.size(), attrs.lastModifiedTime(), Objects.requireNonNullElse(attrs.fileKey(), ""));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private record OpenedKeyDirectory(Map<Path, Object> listing, KeyDirectory directory) {
+    }
+
+    private static final class PatternState {
+        final ReentrantLock lock = new ReentrantLock();
+        final DigestCache digests = new DigestCache();
+        final Map<String, Object> stamps = new HashMap<>();
+    }
+}
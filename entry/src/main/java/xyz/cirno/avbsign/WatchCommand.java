@@ -0,0 +1,182 @@
+package xyz.cirno.avbsign;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import xyz.cirno.avb.util.Logger;
+import xyz.cirno.avb.verify.AvbVerifyResult;
+import xyz.cirno.avb.verify.DigestCache;
+import xyz.cirno.avb.verify.VbmetaImageCache;
+
+/**
+ * Verifies the images matching a pattern, then again whenever one of them was written and has not changed for
+ * the debounce period. Digests of unchanged partitions and the parsed vbmeta images still in use are kept between
+ * runs, so a run only rehashes the partitions that changed.
+ */
+final class WatchCommand {
+    private final String pattern;
+    private final Map<String, String> options;
+    private final PrintStream out;
+    private final Path directory;
+    private final String prefix;
+    private final String suffix;
+    private final DigestCache digests = new DigestCache();
+    final VbmetaImageCache images = new VbmetaImageCache();
+
+    private WatchCommand(String pattern, Map<String, String> options, PrintStream out, Path directory, String prefix, String suffix) {
+        this.pattern = pattern;
+        this.options = options;
+        this.out = out;
+        this.directory = directory;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    static int run(String pattern, Map<String, String> options, PrintStream out) throws IOException {
+        var command = forPattern(pattern, options, out);
+        if (command == null) {
+            return 1;
+        }
+        try {
+            command.watch(Long.parseLong(options.getOrDefault("debounce-ms", "1000")));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    /**
+     * @return null if the pattern has no {} in its file name
+     */
+    static WatchCommand forPattern(String pattern, Map<String, String> options, PrintStream out) {
+        var path = Paths.get(pattern).toAbsolutePath();
+        var fileName = path.getFileName().toString();
+        if (!fileName.contains("{}") || path.getParent().toString().contains("{}")) {
+            Logger.error("watch needs {} in the file name of the pattern, e.g. `out/{}.img`");
+            return null;
+        }
+        var placeholder = fileName.indexOf("{}");
+        return new WatchCommand(path.toString(), options, out, path.getParent(),
+                fileName.substring(0, placeholder), fileName.substring(placeholder + 2));
+    }
+
+    private void watch(long debounceMillis) throws IOException, InterruptedException {
+        try (var watcher = FileSystems.getDefault().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            var changed = new TreeSet<String>();
+            settle(changed);
+            var settleAt = 0L;
+            while (true) {
+                var key = changed.isEmpty() ? watcher.take()
+                        : watcher.poll(Math.max(0, settleAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (key == null) {
+                    settle(changed);
+                    continue;
+                }
+                var relevant = collect(key.pollEvents(), changed);
+                if (!key.reset()) {
+                    Logger.error("Stopped watching " + directory + ", it is no longer accessible");
+                    return;
+                }
+                if (relevant) {
+                    settleAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the partitions whose images {@code events} are about to {@code changed}.
+     *
+     * @return whether any of the events was about an image, which restarts the debounce period
+     */
+    boolean collect(List<WatchEvent<?>> events, Set<String> changed) {
+        var relevant = false;
+        for (var event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, anything may have changed
+                changed.addAll(digests.partitionNames());
+                relevant = true;
+                continue;
+            }
+            var name = partitionOf(event.context().toString());
+            if (name != null) {
+                changed.add(name);
+                relevant = true;
+            }
+        }
+        return relevant;
+    }
+
+    /**
+     * Verifies again once the images of {@code changed} have settled, rehashing only those, and clears it. The
+     * first run verifies with nothing changed.
+     */
+    void settle(Set<String> changed) {
+        for (var name : changed) {
+            digests.invalidate(name);
+        }
+        verify(changed);
+        changed.clear();
+    }
+
+    String partitionOf(String fileName) {
+        if (fileName.length() <= prefix.length() + suffix.length() || !fileName.startsWith(prefix) || !fileName.endsWith(suffix)) {
+            return null;
+        }
+        return fileName.substring(prefix.length(), fileName.length() - suffix.length());
+    }
+
+    private void verify(Set<String> changed) {
+        out.println("[" + LocalTime.now().truncatedTo(ChronoUnit.SECONDS) + "] "
+                + (changed.isEmpty() ? "Initial verification" : "Changed: " + String.join(", ", changed)));
+        AvbVerifyResult result;
+        try {
+            var verifier = Main.newAvbVerifier(pattern, options);
+            verifier.setDigestCache(digests);
+            verifier.setVbmetaImageCache(images);
+            result = verifier.recursiveVerify("vbmeta");
+            images.evictUnused();
+        } catch (IOException | RuntimeException e) {
+            // e.g. an image that is being replaced, the next change triggers another run
+            Logger.error("Verification failed: " + e);
+            return;
+        }
+        for (var name : changed) {
+            var parents = new TreeSet<String>();
+            for (var ref : result.partitionReferences) {
+                if (ref.partitionName().equals(name)) {
+                    parents.add(ref.referencedInVbmetaPartition());
+                }
+            }
+            if (!parents.isEmpty()) {
+                out.println("  " + name + " is referenced by " + String.join(", ", parents));
+            } else if (!result.partitionRecords.containsKey(name)) {
+                out.println("  " + name + " is not part of the vbmeta chain");
+            }
+        }
+        if (result.hasIssues()) {
+            out.println("Verification failed with issues:");
+            for (var issue : result.issues) {
+                out.println("Issue: " + issue);
+            }
+            Main.printBootImageComponents(result, out);
+        } else {
+            out.println("Verification succeeded with no issues.");
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,151 @@
+package xyz.cirno.avbsign;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+
+import xyz.cirno.avb.PartitionProvider;
+
+public class DaemonTest {
+    private static final byte[] SALT = new byte[]{1, 2};
+    private static final byte[] DIGEST = new byte[32];
+
+    @Test
+    public void testFraming() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        var args = new String[]{"check", "/images/{}.img", "--mode", "", "quick"};
+        DaemonProtocol.writeFrame(out, DaemonProtocol.REQUEST, DaemonProtocol.encodeArgs(args));
+        // larger than one frame, so it is split
+        var large = new byte[(1 << 20) + 100];
+        large[large.length - 1] = 42;
+        new DaemonProtocol.FrameOutputStream(out).write(large);
+        DaemonProtocol.writeFrame(out, DaemonProtocol.EXIT, DaemonProtocol.encodeExitCode(-2));
+
+        var in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        var request = DaemonProtocol.readFrame(in);
+        Assert.assertEquals(DaemonProtocol.REQUEST, request.type());
+        Assert.assertArrayEquals(args, DaemonProtocol.decodeArgs(request.payload()));
+        var output = new ByteArrayOutputStream();
+        var frames = 0;
+        DaemonProtocol.Frame frame;
+        while ((frame = DaemonProtocol.readFrame(in)).type() == DaemonProtocol.OUTPUT) {
+            output.write(frame.payload());
+            frames++;
+        }
+        Assert.assertEquals(2, frames);
+        Assert.assertArrayEquals(large, output.toByteArray());
+        Assert.assertEquals(DaemonProtocol.EXIT, frame.type());
+        Assert.assertEquals(-2, DaemonProtocol.decodeExitCode(frame.payload()));
+        Assert.assertNull(DaemonProtocol.readFrame(in));
+
+        var invalid = new ByteArrayOutputStream();
+        new DataOutputStream(invalid).writeInt(0);
+        Assert.assertThrows(IOException.class,
+                () -> DaemonProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(invalid.toByteArray()))));
+    }
+
+    @Test
+    public void testSessionCacheInvalidation() throws IOException {
+        var tmpDir = Files.createTempDirectory("avbsession");
+        try {
+            var pattern = tmpDir + "/{}.img";
+            var image = tmpDir.resolve("boot.img");
+            Files.write(image, new byte[4096]);
+            var cache = new SessionCache();
+            var provider = filePartitions(pattern);
+
+            // unchanged between commands, the digest is reused
+            hash(cache, pattern, provider, () -> {
+            });
+            Assert.assertNotNull(cache.acquire(pattern).get("boot", "sha256", SALT, 4096));
+            cache.release(pattern);
+
+            // rewritten while the command was hashing it, the digest describes the old content
+            hash(cache, pattern, provider, () -> rewrite(image, 1));
+            Assert.assertNull(cache.acquire(pattern).get("boot", "sha256", SALT, 4096));
+            cache.release(pattern);
+
+            // written by the command itself
+            hash(cache, pattern, provider, () -> {
+                rewrite(image, 2);
+                cache.wrote(pattern, "boot");
+            });
+            Assert.assertNotNull(cache.acquire(pattern).get("boot", "sha256", SALT, 4096));
+            cache.release(pattern);
+
+            // rewritten between commands
+            rewrite(image, 3);
+            Assert.assertNull(cache.acquire(pattern).get("boot", "sha256", SALT, 4096));
+            cache.release(pattern);
+        } finally {
+            deleteRecursively(tmpDir);
+        }
+    }
+
+    @Test
+    public void testForwardedArguments() {
+        var cwd = Path.of("").toAbsolutePath();
+        var args = Daemon.absolutizePaths(new String[]{"check", "images/{}.img", "--checkpoint-dir", "ckpt",
+                "--mode", "quick"});
+        Assert.assertArrayEquals(new String[]{"check", cwd.resolve("images/{}.img").toString(), "--checkpoint-dir",
+                cwd.resolve("ckpt").toString(), "--mode", "quick"}, args);
+        args = Daemon.absolutizePaths(new String[]{"check", "https://ci.example.com/builds/1/{}.img",
+                "--signing-helper", "helper"});
+        Assert.assertArrayEquals(new String[]{"check", "https://ci.example.com/builds/1/{}.img",
+                "--signing-helper", "helper"}, args);
+    }
+
+    // a command that hashes partition boot of pattern, runs during, and releases the cache
+    private static void hash(SessionCache cache, String pattern, PartitionProvider provider, IORunnable during)
+            throws IOException {
+        var digests = cache.acquire(pattern);
+        try (var ch = cache.stampBeforeRead(pattern, provider).openPartition("boot")) {
+            during.run();
+            digests.put("boot", "sha256", SALT, ch.size(), DIGEST);
+        } finally {
+            cache.release(pattern);
+        }
+    }
+
+    private static void rewrite(Path image, int seconds) throws IOException {
+        Files.write(image, new byte[4096]);
+        // coarse file system timestamps would otherwise hide the write
+        Files.setLastModifiedTime(image, FileTime.fromMillis(Files.getLastModifiedTime(image).toMillis() + seconds * 1000L));
+    }
+
+    private static PartitionProvider filePartitions(String pattern) {
+        return name -> {
+            try {
+                return (SeekableByteChannel) FileChannel.open(Path.of(pattern.replace("{}", name)), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (var f : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package xyz.cirno.avbsign;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import xyz.cirno.avb.VbmetaImageBuilder;
+
+public class InfoCommandTest {
+    @Test
+    public void testExitCodes() throws Throwable {
+        var tmpDir = Files.createTempDirectory("avbinfo");
+        try {
+            Files.write(tmpDir.resolve("vbmeta.img"), new VbmetaImageBuilder().build(null).join());
+            var raw = tmpDir.resolve("raw.img");
+            Files.write(raw, new byte[100]);
+
+            var bytes = new ByteArrayOutputStream();
+            var out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+            Assert.assertEquals(1, InfoCommand.run(raw.toString(), Map.of(), out));
+            Assert.assertEquals("No AVB metadata found in " + raw + System.lineSeparator(), bytes.toString(StandardCharsets.UTF_8));
+
+            // raw images are expected in a directory
+            bytes.reset();
+            Assert.assertEquals(0, InfoCommand.run(tmpDir.toString(), Map.of("format", "text"), out));
+            Assert.assertTrue(bytes.toString(StandardCharsets.UTF_8).contains("No AVB metadata found in " + raw));
+            bytes.reset();
+            Assert.assertEquals(0, InfoCommand.run(tmpDir.toString(), Map.of(), out));
+            Assert.assertTrue(bytes.toString(StandardCharsets.UTF_8).contains("\"error\":\"no AVB metadata found\""));
+
+            // a file that cannot be parsed is an error
+            Files.write(tmpDir.resolve("bad.img"), new byte[]{'A', 'V', 'B', '0'});
+            Assert.assertEquals(1, InfoCommand.run(tmpDir.toString(), Map.of(), out));
+        } finally {
+            DaemonTest.deleteRecursively(tmpDir);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package xyz.cirno.avbsign;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import xyz.cirno.avb.AvbKeyPair;
+import xyz.cirno.avb.util.Logger;
+
+public class WatchCommandTest {
+    @Test
+    public void testRehashesChangedPartitions() throws Throwable {
+        var tmpDir = Files.createTempDirectory("avbwatch");
+        var bytes = new ByteArrayOutputStream();
+        var out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        try {
+            var key = MainTest.newKeyPair();
+            var random = new Random(3);
+            var boot = new byte[100000];
+            random.nextBytes(boot);
+            Files.write(tmpDir.resolve("boot.img"), boot);
+            var system = new byte[200000];
+            random.nextBytes(system);
+            Files.write(tmpDir.resolve("system.img"), system);
+            writeVbmeta(tmpDir, key, boot, system);
+
+            Assert.assertNull(WatchCommand.forPattern(tmpDir.resolve("vbmeta.img").toString(), Map.of(), out));
+            var command = WatchCommand.forPattern(tmpDir.resolve("{}.img").toString(), Map.of(), out);
+            Assert.assertEquals("system", command.partitionOf("system.img"));
+            Assert.assertNull(command.partitionOf("system.img.tmp"));
+            Assert.assertNull(command.partitionOf(".img"));
+
+            Logger.setThreadOutput(out);
+            var changed = new TreeSet<String>();
+            command.settle(changed);
+            var log = bytes.toString(StandardCharsets.UTF_8);
+            Assert.assertTrue(log.contains("Initial verification"));
+            Assert.assertTrue(log.contains("Hashing 2 partitions concurrently"));
+            Assert.assertTrue(log.contains("Verification succeeded with no issues."));
+
+            // files that are not images, like the temporary file an image is written to, are ignored
+            Assert.assertFalse(command.collect(List.of(event(StandardWatchEventKinds.ENTRY_CREATE, "system.img.tmp"),
+                    event(StandardWatchEventKinds.ENTRY_MODIFY, "notes.txt")), changed));
+            Assert.assertEquals(Set.of(), changed);
+            Assert.assertTrue(command.collect(List.of(event(StandardWatchEventKinds.ENTRY_MODIFY, "system.img.tmp"),
+                    event(StandardWatchEventKinds.ENTRY_CREATE, "system.img"),
+                    event(StandardWatchEventKinds.ENTRY_MODIFY, "system.img")), changed));
+            Assert.assertEquals(Set.of("system"), changed);
+
+            // only the changed partition is hashed again
+            system[0] ^= 1;
+            Files.write(tmpDir.resolve("system.img"), system);
+            bytes.reset();
+            command.settle(changed);
+            Assert.assertEquals(Set.of(), changed);
+            log = bytes.toString(StandardCharsets.UTF_8);
+            Assert.assertTrue(log.contains("Changed: system"));
+            Assert.assertTrue(log.contains("Hashing 1 partitions concurrently"));
+            Assert.assertTrue(log.contains("Reusing cached digest of partition boot"));
+            Assert.assertTrue(log.contains("system is referenced by vbmeta"));
+            Assert.assertTrue(log.contains("Verification failed with issues:"));
+
+            // a regenerated vbmeta needs no hashing and replaces the old one in the cache
+            writeVbmeta(tmpDir, key, boot, system);
+            Assert.assertTrue(command.collect(List.of(event(StandardWatchEventKinds.ENTRY_MODIFY, "vbmeta.img")), changed));
+            bytes.reset();
+            command.settle(changed);
+            log = bytes.toString(StandardCharsets.UTF_8);
+            Assert.assertFalse(log.contains("Hashing"));
+            Assert.assertTrue(log.contains("Verification succeeded with no issues."));
+            Assert.assertEquals(1, command.images.size());
+
+            // after lost events every hashed partition counts as changed
+            Assert.assertTrue(command.collect(List.of(event(StandardWatchEventKinds.OVERFLOW, null)), changed));
+            Assert.assertEquals(Set.of("boot", "system"), changed);
+        } finally {
+            Logger.setThreadOutput(null);
+            DaemonTest.deleteRecursively(tmpDir);
+        }
+    }
+
+    private static void writeVbmeta(Path dir, AvbKeyPair key, byte[] boot, byte[] system) throws Exception {
+        Files.write(dir.resolve("vbmeta.img"), MainTest.newVbmeta(MainTest.hashOf("boot", boot),
+                MainTest.hashOf("system", system)).toSignedByteArray(key));
+    }
+
+    private static <T> WatchEvent<T> event(WatchEvent.Kind<T> kind, String fileName) {
+        return new WatchEvent<>() {
+            @Override
+            public Kind<T> kind() {
+                return kind;
+            }
+
+            @Override
+            public int count() {
+                return 1;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public T context() {
+                return fileName == null ? null : (T) Path.of(fileName);
+            }
+        };
+    }
+}